@@ -0,0 +1,134 @@
+package fr.wseduc.resizer;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Arrays of the encoders output, shared by the module instances and reused instead of being allocated for each
+ * image. Arrays are sized by powers of two, from 16 KB to 16 MB, and the pool keeps at most its capacity of idle
+ * arrays. Larger arrays aren't pooled. The pool is dropped when its last user is closed.
+ */
+public class BufferPool {
+
+	private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
+	private static final int MIN_CLASS = 14;
+	private static final int MAX_CLASS = 24;
+	private static BufferPool instance;
+	private static int references;
+
+	private final long capacity;
+	private final List<ArrayDeque<byte[]>> classes;
+	private long pooled;
+	private boolean closed;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong recycled = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	private BufferPool(long capacity) {
+		this.capacity = capacity;
+		this.classes = new ArrayList<>(MAX_CLASS - MIN_CLASS + 1);
+		for (int i = MIN_CLASS; i <= MAX_CLASS; i++) {
+			classes.add(new ArrayDeque<byte[]>());
+		}
+	}
+
+	public static synchronized BufferPool getInstance(long capacity) {
+		if (instance == null) {
+			instance = new BufferPool(capacity);
+			if (capacity > 0) {
+				log.info("Output buffers pool : " + capacity + " bytes");
+			}
+		}
+		references++;
+		return instance;
+	}
+
+	/**
+	 * @return an array of at least size bytes, whose content is undefined
+	 */
+	public byte[] acquire(int size) {
+		final int c = getClass(size);
+		if (c < 0) {
+			misses.incrementAndGet();
+			return new byte[size];
+		}
+		synchronized (this) {
+			final byte[] b = classes.get(c - MIN_CLASS).pollLast();
+			if (b != null) {
+				pooled -= b.length;
+				hits.incrementAndGet();
+				return b;
+			}
+		}
+		misses.incrementAndGet();
+		return new byte[1 << c];
+	}
+
+	/**
+	 * Give back an array which isn't used anymore. Arrays which aren't from the pool are ignored.
+	 */
+	public void recycle(byte[] b) {
+		if (b == null || capacity <= 0 || Integer.bitCount(b.length) != 1 || getClass(b.length) < 0) {
+			return;
+		}
+		synchronized (this) {
+			if (!closed && pooled + b.length <= capacity) {
+				classes.get(getClass(b.length) - MIN_CLASS).addLast(b);
+				pooled += b.length;
+				recycled.incrementAndGet();
+				return;
+			}
+		}
+		dropped.incrementAndGet();
+	}
+
+	public JsonObject getStats() {
+		final JsonObject stats = new JsonObject()
+				.put("hits", hits.get())
+				.put("misses", misses.get())
+				.put("recycled", recycled.get())
+				.put("dropped", dropped.get());
+		synchronized (this) {
+			stats.put("pooled", pooled);
+		}
+		return stats;
+	}
+
+	/**
+	 * @return the size class (log2 of the array size) or -1 if arrays of that size aren't pooled
+	 */
+	private int getClass(int size) {
+		if (capacity <= 0 || size > (1 << MAX_CLASS)) {
+			return -1;
+		}
+		return Math.max(MIN_CLASS, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1));
+	}
+
+	/**
+	 * Drop the idle arrays when the last user of the pool is closed. Arrays given back later are ignored.
+	 */
+	public void close() {
+		synchronized (BufferPool.class) {
+			if (--references > 0 || instance != this) {
+				return;
+			}
+			instance = null;
+			references = 0;
+		}
+		synchronized (this) {
+			for (ArrayDeque<byte[]> c : classes) {
+				c.clear();
+			}
+			pooled = 0;
+			closed = true;
+		}
+	}
+
+}
@@ -0,0 +1,63 @@
+package fr.wseduc.resizer;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Seekable ImageInputStream reading directly from a ByteBuffer, so ImageIO readers
+ * don't copy the encoded image into a memory or file cache.
+ */
+public class ByteBufferImageInputStream extends ImageInputStreamImpl {
+
+	private final ByteBuffer buffer;
+
+	public ByteBufferImageInputStream(ByteBuffer buffer) {
+		this.buffer = buffer.slice();
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkClosed();
+		bitOffset = 0;
+		if (streamPos >= buffer.limit()) {
+			return -1;
+		}
+		return buffer.get((int) streamPos++) & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkClosed();
+		bitOffset = 0;
+		if (len == 0) {
+			return 0;
+		}
+		final long remaining = buffer.limit() - streamPos;
+		if (remaining <= 0) {
+			return -1;
+		}
+		final int n = (int) Math.min(len, remaining);
+		final ByteBuffer src = buffer.duplicate();
+		src.position((int) streamPos);
+		src.get(b, off, n);
+		streamPos += n;
+		return n;
+	}
+
+	@Override
+	public long length() {
+		return buffer.limit();
+	}
+
+	@Override
+	public boolean isCached() {
+		return true;
+	}
+
+	@Override
+	public boolean isCachedMemory() {
+		return true;
+	}
+
+}
@@ -0,0 +1,346 @@
+package fr.wseduc.resizer;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Source images decoded at full resolution, kept for a short time so the operations chained on the same source
+ * (crop, then resize, then compress) only decode it once. Entries are keyed by the source path and its version
+ * (size and modification time) and evicted in LRU order.
+ * The first operation on a source decodes it whole, even to use a region or a sub-sampling of it, when the cache
+ * has room for it. The rasters are accounted in the memory budget : an image is only cached when the budget has
+ * room for it without making an operation wait, and entries are evicted as soon as an operation needs their memory.
+ * Entries are held by the operations using them : the memory of an evicted entry is only given back to the budget
+ * once its last user releases it, and the entries in use aren't evicted to reclaim memory.
+ */
+public class DecodedCache implements MemoryBudget.Reclaimer {
+
+	private static final Logger log = LoggerFactory.getLogger(DecodedCache.class);
+	private static DecodedCache instance;
+
+	private final MemoryBudget memoryBudget;
+	private final long capacity;
+	private final long ttl;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long size;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	DecodedCache(MemoryBudget memoryBudget, long capacity, long ttl) {
+		this.memoryBudget = memoryBudget;
+		this.capacity = Math.max(0, capacity);
+		this.ttl = ttl;
+	}
+
+	public static synchronized DecodedCache getInstance(MemoryBudget memoryBudget, long capacity, long ttl) {
+		// the budget is replaced when the module is redeployed
+		if (instance == null || instance.memoryBudget != memoryBudget) {
+			instance = new DecodedCache(memoryBudget, capacity, ttl);
+			if (instance.isEnabled()) {
+				memoryBudget.setReclaimer(instance);
+				log.info("Decoded images cache : " + capacity + " bytes, " + ttl + " ms");
+			}
+		}
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return capacity > 0 && ttl > 0;
+	}
+
+	/**
+	 * @return the decoded image, to release once its rasters aren't used anymore, or null if it isn't cached
+	 * or has expired
+	 */
+	public Entry get(String key) {
+		Entry entry;
+		Entry expired = null;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry != null && entry.expires < System.currentTimeMillis()) {
+				expirations.incrementAndGet();
+				expired = evict(remove(key));
+				entry = null;
+			} else if (entry != null) {
+				entry.users++;
+			}
+		}
+		if (expired != null) {
+			expired.reservation.release();
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * Reserve the room of a source about to be decoded at full resolution, evicting the least recently used
+	 * entries if the cache is full. The first operation on a source decodes it whole once it got the room,
+	 * then serves its region and sub-sampling from the decoded image.
+	 * @param bytes the estimated size of the decoded image
+	 * @return the room to fill with the decoded image, or null if it doesn't fit in the cache or in the memory
+	 * budget without making an operation wait
+	 */
+	public Pending reserve(String key, long bytes, String filename, String contentType) {
+		if (!isEnabled() || bytes > capacity) {
+			return null;
+		}
+		final List<Entry> evicted = new ArrayList<>();
+		synchronized (this) {
+			final Entry previous = evict(remove(key));
+			if (previous != null) {
+				evicted.add(previous);
+			}
+			final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while (size + bytes > capacity && it.hasNext()) {
+				final Entry e = it.next().getValue();
+				size -= e.bytes;
+				it.remove();
+				evictions.incrementAndGet();
+				if (evict(e) != null) {
+					evicted.add(e);
+				}
+			}
+			if (size + bytes > capacity) {
+				// filled by the sources being decoded
+				release(evicted);
+				return null;
+			}
+			size += bytes;
+		}
+		release(evicted);
+		final MemoryBudget.Reservation reservation = memoryBudget.tryReserve(bytes);
+		if (reservation == null) {
+			synchronized (this) {
+				size -= bytes;
+			}
+			return null;
+		}
+		return new Pending(key, bytes, reservation, filename, contentType);
+	}
+
+	private Entry put(Pending pending, BufferedImage image, String format, int orientation) {
+		final Entry entry = new Entry(image, format, orientation, pending.filename, pending.contentType,
+				pending.bytes, pending.reservation, System.currentTimeMillis() + ttl);
+		final Entry released;
+		synchronized (this) {
+			// held by the operation which decoded it
+			entry.users = 1;
+			final Entry previous = entries.put(pending.key, entry);
+			if (previous != null) {
+				size -= previous.bytes;
+			}
+			released = evict(previous);
+		}
+		if (released != null) {
+			released.reservation.release();
+		}
+		return entry;
+	}
+
+	private void cancel(Pending pending) {
+		synchronized (this) {
+			size -= pending.bytes;
+		}
+		pending.reservation.release();
+	}
+
+	/**
+	 * Evict the least recently used entries to give their memory back to the operations.
+	 */
+	@Override
+	public void reclaim(long bytes) {
+		final List<Entry> evicted = new ArrayList<>();
+		synchronized (this) {
+			long reclaimed = 0;
+			final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while (reclaimed < bytes && it.hasNext()) {
+				final Entry e = it.next().getValue();
+				if (e.users > 0) {
+					// its memory can't be given back while an operation uses it
+					continue;
+				}
+				size -= e.bytes;
+				reclaimed += e.bytes;
+				it.remove();
+				evicted.add(evict(e));
+				evictions.incrementAndGet();
+			}
+		}
+		release(evicted);
+	}
+
+	/**
+	 * Remove the expired entries.
+	 */
+	public void purge() {
+		final List<Entry> expired = new ArrayList<>();
+		synchronized (this) {
+			final long now = System.currentTimeMillis();
+			final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while (it.hasNext()) {
+				final Entry e = it.next().getValue();
+				if (e.expires < now) {
+					size -= e.bytes;
+					it.remove();
+					expirations.incrementAndGet();
+					if (evict(e) != null) {
+						expired.add(e);
+					}
+				}
+			}
+		}
+		release(expired);
+	}
+
+	public synchronized JsonObject getStats() {
+		return new JsonObject()
+				.put("hits", hits.get())
+				.put("misses", misses.get())
+				.put("evictions", evictions.get())
+				.put("expirations", expirations.get())
+				.put("entries", entries.size())
+				.put("size", size);
+	}
+
+	private Entry remove(String key) {
+		final Entry e = entries.remove(key);
+		if (e != null) {
+			size -= e.bytes;
+		}
+		return e;
+	}
+
+	/**
+	 * Mark an entry removed from the cache.
+	 * @return the entry if its memory can be given back, or null if an operation still uses it
+	 */
+	private Entry evict(Entry e) {
+		if (e == null) {
+			return null;
+		}
+		e.cached = false;
+		return (e.users == 0) ? e : null;
+	}
+
+	private void release(List<Entry> evicted) {
+		for (Entry e : evicted) {
+			e.reservation.release();
+		}
+	}
+
+	/**
+	 * Room reserved for a source being decoded, either filled with the decoded image or cancelled.
+	 */
+	public final class Pending {
+
+		private final String key;
+		private final long bytes;
+		private final MemoryBudget.Reservation reservation;
+		private final String filename;
+		private final String contentType;
+		private boolean done;
+
+		private Pending(String key, long bytes, MemoryBudget.Reservation reservation, String filename,
+				String contentType) {
+			this.key = key;
+			this.bytes = bytes;
+			this.reservation = reservation;
+			this.filename = filename;
+			this.contentType = contentType;
+		}
+
+		/**
+		 * @return the cached entry, held by the caller, or null if the room was already filled or cancelled
+		 */
+		public synchronized Entry put(BufferedImage image, String format, int orientation) {
+			if (done) {
+				return null;
+			}
+			done = true;
+			return DecodedCache.this.put(this, image, format, orientation);
+		}
+
+		public synchronized void cancel() {
+			if (!done) {
+				done = true;
+				DecodedCache.this.cancel(this);
+			}
+		}
+
+	}
+
+	public final class Entry {
+
+		private final BufferedImage image;
+		private final String format;
+		private final int orientation;
+		private final String filename;
+		private final String contentType;
+		private final long bytes;
+		private final MemoryBudget.Reservation reservation;
+		private final long expires;
+		private int users;
+		private boolean cached = true;
+
+		private Entry(BufferedImage image, String format, int orientation, String filename, String contentType,
+				long bytes, MemoryBudget.Reservation reservation, long expires) {
+			this.image = image;
+			this.format = format;
+			this.orientation = orientation;
+			this.filename = filename;
+			this.contentType = contentType;
+			this.bytes = bytes;
+			this.reservation = reservation;
+			this.expires = expires;
+		}
+
+		public BufferedImage getImage() {
+			return image;
+		}
+
+		public String getFormat() {
+			return format;
+		}
+
+		public int getOrientation() {
+			return orientation;
+		}
+
+		public String getFilename() {
+			return filename;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		/**
+		 * Release the entry once its rasters aren't used anymore by the caller which got it.
+		 */
+		public void release() {
+			synchronized (DecodedCache.this) {
+				if (users == 0 || --users > 0 || cached) {
+					return;
+				}
+			}
+			reservation.release();
+		}
+
+	}
+
+}
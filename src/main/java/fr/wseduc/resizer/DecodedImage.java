@@ -0,0 +1,49 @@
+package fr.wseduc.resizer;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Decoded source image with the header information of the original, which may differ from the
+ * decoded image when it has been sub-sampled.
+ */
+public final class DecodedImage {
+
+	private final BufferedImage image;
+	private final int width;
+	private final int height;
+	private final int orientation;
+	private final String format;
+
+	public DecodedImage(BufferedImage image, ImageProbe probe) {
+		this(image, probe.getWidth(), probe.getHeight(), probe.getOrientation(), probe.getFormat());
+	}
+
+	public DecodedImage(BufferedImage image, int width, int height, int orientation, String format) {
+		this.image = image;
+		this.width = width;
+		this.height = height;
+		this.orientation = orientation;
+		this.format = format;
+	}
+
+	public BufferedImage getImage() {
+		return image;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getOrientation() {
+		return orientation;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+}
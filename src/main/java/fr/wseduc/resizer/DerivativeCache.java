@@ -0,0 +1,345 @@
+package fr.wseduc.resizer;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encoded results of the operations, keyed by a hash of the source content and of the normalized parameters
+ * of the operation. Entries are kept in memory in LRU order within a byte budget and, when a directory is
+ * configured, written through to a disk tier with its own byte budget.
+ * Lookups and writes do blocking I/O on the disk tier and must run on the processing pool.
+ * The cache is shared by the module instances and dropped when its last user is closed.
+ */
+public class DerivativeCache {
+
+	private static final Logger log = LoggerFactory.getLogger(DerivativeCache.class);
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final String TMP_SUFFIX = ".tmp";
+	private static DerivativeCache instance;
+	private static int references;
+
+	private final long capacity;
+	private final long maxEntrySize;
+	private final Path directory;
+	private final long diskCapacity;
+	private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<String, Long> diskEntries = new LinkedHashMap<>(16, 0.75f, true);
+	private long size;
+	private long diskSize;
+	private boolean diskLoaded;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong diskEvictions = new AtomicLong();
+	private final AtomicLong tooLarge = new AtomicLong();
+
+	private DerivativeCache(long capacity, long maxEntrySize, String directory, long diskCapacity) {
+		this.capacity = Math.max(0, capacity);
+		this.maxEntrySize = maxEntrySize;
+		this.directory = (directory != null && !directory.isEmpty() && diskCapacity > 0) ? Paths.get(directory) : null;
+		this.diskCapacity = diskCapacity;
+	}
+
+	/**
+	 * The cache shared by the instances enabling it. A disabled cache holds nothing and isn't shared, so an instance
+	 * without cache doesn't disable the cache of the others.
+	 */
+	public static synchronized DerivativeCache getInstance(long capacity, long maxEntrySize, String directory,
+			long diskCapacity) {
+		final DerivativeCache cache = new DerivativeCache(capacity, maxEntrySize, directory, diskCapacity);
+		if (!cache.isEnabled()) {
+			return cache;
+		}
+		if (instance == null) {
+			instance = cache;
+			log.info("Derivative cache : " + capacity + " bytes in memory" + (instance.directory != null ?
+					", " + diskCapacity + " bytes in " + instance.directory : ""));
+		} else if (instance.capacity != cache.capacity || instance.maxEntrySize != cache.maxEntrySize ||
+				!String.valueOf(instance.directory).equals(String.valueOf(cache.directory)) ||
+				(instance.directory != null && instance.diskCapacity != cache.diskCapacity)) {
+			log.warn("Derivative cache already configured by another instance, its settings are kept.");
+		}
+		references++;
+		return instance;
+	}
+
+	/**
+	 * Index the files left by a previous run in the disk tier, once for the instances sharing the cache.
+	 * Scans the directory : must not run on an event loop. Until it is done the disk tier only knows
+	 * the entries written since the start.
+	 */
+	public void loadDisk() {
+		synchronized (diskEntries) {
+			if (directory == null || diskLoaded) {
+				return;
+			}
+			diskLoaded = true;
+		}
+		loadDiskEntries();
+	}
+
+	/**
+	 * Drop the cache when its last user is closed. The disk tier is left for the next run.
+	 */
+	public void close() {
+		synchronized (DerivativeCache.class) {
+			if (instance != this || --references > 0) {
+				return;
+			}
+			instance = null;
+			references = 0;
+		}
+		synchronized (entries) {
+			entries.clear();
+			size = 0;
+		}
+	}
+
+	public boolean isEnabled() {
+		return capacity > 0 || directory != null;
+	}
+
+	/**
+	 * Key of the result of an operation on the source.
+	 * @param src the source image
+	 * @param params the normalized parameters of the operation, including the output format
+	 */
+	public String getKey(ImageFile src, String params) {
+		final MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		md.update(src.getBuffer());
+		md.update((byte) 0);
+		md.update(params.getBytes(StandardCharsets.UTF_8));
+		final byte[] digest = md.digest();
+		final char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * @return the cached result or null
+	 */
+	public byte[] get(String key) {
+		synchronized (entries) {
+			final byte[] data = entries.get(key);
+			if (data != null) {
+				hits.incrementAndGet();
+				return data;
+			}
+		}
+		if (directory != null) {
+			final boolean onDisk;
+			synchronized (diskEntries) {
+				onDisk = diskEntries.get(key) != null;
+			}
+			if (onDisk) {
+				try {
+					final byte[] data = Files.readAllBytes(getPath(key));
+					diskHits.incrementAndGet();
+					putInMemory(key, data);
+					return data;
+				} catch (IOException e) {
+					log.debug("Error reading cached image " + key, e);
+					removeFromDisk(key);
+				}
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Cache a result, unless it is larger than the maximum entry size.
+	 */
+	public void put(String key, byte[] data) {
+		if (data == null || data.length > maxEntrySize) {
+			tooLarge.incrementAndGet();
+			return;
+		}
+		putInMemory(key, data);
+		if (directory != null) {
+			writeToDisk(key, data);
+		}
+	}
+
+	public JsonObject getStats() {
+		final JsonObject stats = new JsonObject()
+				.put("hits", hits.get())
+				.put("disk-hits", diskHits.get())
+				.put("misses", misses.get())
+				.put("evictions", evictions.get())
+				.put("disk-evictions", diskEvictions.get())
+				.put("too-large", tooLarge.get());
+		synchronized (entries) {
+			stats.put("entries", entries.size()).put("size", size);
+		}
+		synchronized (diskEntries) {
+			stats.put("disk-entries", diskEntries.size()).put("disk-size", diskSize);
+		}
+		return stats;
+	}
+
+	private void putInMemory(String key, byte[] data) {
+		if (data.length > capacity) {
+			return;
+		}
+		synchronized (entries) {
+			final byte[] previous = entries.put(key, data);
+			size += data.length - (previous != null ? previous.length : 0);
+			final Iterator<Map.Entry<String, byte[]>> it = entries.entrySet().iterator();
+			while (size > capacity && it.hasNext()) {
+				final Map.Entry<String, byte[]> e = it.next();
+				size -= e.getValue().length;
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private void writeToDisk(String key, byte[] data) {
+		if (data.length > diskCapacity) {
+			return;
+		}
+		final Path path = getPath(key);
+		final Path tmp = path.resolveSibling(key + TMP_SUFFIX);
+		try {
+			Files.createDirectories(path.getParent());
+			Files.write(tmp, data);
+			try {
+				Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			log.error("Error writing cached image " + key, e);
+			try {
+				Files.deleteIfExists(tmp);
+			} catch (IOException e1) {
+				log.debug("Error deleting " + tmp, e1);
+			}
+			return;
+		}
+		final List<String> evicted = new ArrayList<>();
+		synchronized (diskEntries) {
+			final Long previous = diskEntries.put(key, (long) data.length);
+			diskSize += data.length - (previous != null ? previous : 0);
+			final Iterator<Map.Entry<String, Long>> it = diskEntries.entrySet().iterator();
+			while (diskSize > diskCapacity && it.hasNext()) {
+				final Map.Entry<String, Long> e = it.next();
+				diskSize -= e.getValue();
+				evicted.add(e.getKey());
+				it.remove();
+				diskEvictions.incrementAndGet();
+			}
+		}
+		for (String k : evicted) {
+			deleteFile(k);
+		}
+	}
+
+	private void removeFromDisk(String key) {
+		synchronized (diskEntries) {
+			final Long previous = diskEntries.remove(key);
+			if (previous != null) {
+				diskSize -= previous;
+			}
+		}
+		deleteFile(key);
+	}
+
+	private void deleteFile(String key) {
+		try {
+			Files.deleteIfExists(getPath(key));
+		} catch (IOException e) {
+			log.debug("Error deleting cached image " + key, e);
+		}
+	}
+
+	private Path getPath(String key) {
+		return directory.resolve(key.substring(0, 2)).resolve(key);
+	}
+
+	/**
+	 * Index the files left by a previous run, the least recently modified first.
+	 */
+	private void loadDiskEntries() {
+		final List<Path> files = new ArrayList<>();
+		try {
+			Files.createDirectories(directory);
+			try (DirectoryStream<Path> dirs = Files.newDirectoryStream(directory)) {
+				for (Path dir : dirs) {
+					if (!Files.isDirectory(dir)) {
+						continue;
+					}
+					try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+						for (Path file : ds) {
+							if (file.getFileName().toString().endsWith(TMP_SUFFIX)) {
+								Files.deleteIfExists(file);
+							} else {
+								files.add(file);
+							}
+						}
+					}
+				}
+			}
+			Collections.sort(files, new Comparator<Path>() {
+				@Override
+				public int compare(Path a, Path b) {
+					return Long.compare(a.toFile().lastModified(), b.toFile().lastModified());
+				}
+			});
+			final List<Long> lengths = new ArrayList<>(files.size());
+			for (Path file : files) {
+				lengths.add(Files.size(file));
+			}
+			synchronized (diskEntries) {
+				// the entries written during the scan are the most recent ones
+				final Map<String, Long> written = new LinkedHashMap<>(diskEntries);
+				diskEntries.clear();
+				diskSize = 0;
+				for (int i = 0; i < files.size(); i++) {
+					final String key = files.get(i).getFileName().toString();
+					if (!written.containsKey(key)) {
+						diskEntries.put(key, lengths.get(i));
+						diskSize += lengths.get(i);
+					}
+				}
+				for (Map.Entry<String, Long> e : written.entrySet()) {
+					diskEntries.put(e.getKey(), e.getValue());
+					diskSize += e.getValue();
+				}
+			}
+		} catch (IOException e) {
+			log.error("Error loading derivative cache directory " + directory, e);
+		}
+	}
+
+}
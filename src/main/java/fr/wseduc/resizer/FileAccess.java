@@ -18,12 +18,35 @@ package fr.wseduc.resizer;
 
 import io.vertx.core.Handler;
 
+import java.io.IOException;
+
 public interface FileAccess {
 
 	void read(String src, Handler<ImageFile> handler);
 
+	/**
+	 * Read only the first bytes of the source, so it can be probed before being read entirely.
+	 * @param length the number of bytes to read, the whole source being returned if it is shorter
+	 * @param handler called with the header, or null if the storage can't read a part of a source,
+	 *                or if the source can't be read (see read)
+	 */
+	void readHeader(String src, int length, Handler<ImageFile> handler);
+
 	void write(String dest, ImageFile img, Handler<String> handler);
 
+	/**
+	 * Open a stream writing an image to dest, so it is encoded straight to its destination.
+	 * Does blocking I/O, must be called on the processing pool.
+	 * @return the output or null if the storage only writes whole images (see write)
+	 * @throws IOException if the destination is invalid or can't be written
+	 */
+	ImageOutput openOutput(String dest) throws IOException;
+
+	/**
+	 * Version of the source (size and modification date, ETag...), or null if it can't be known without reading it.
+	 */
+	void getVersion(String src, Handler<String> handler);
+
 	void close();
 
 }
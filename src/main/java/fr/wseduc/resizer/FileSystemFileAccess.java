@@ -19,29 +19,56 @@ package fr.wseduc.resizer;
 import fr.wseduc.webutils.DefaultAsyncResult;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Handler;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.FileProps;
 import io.vertx.core.file.FileSystem;
+import io.vertx.core.file.OpenOptions;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FileSystemFileAccess implements FileAccess {
 
 	private static final Logger log = LoggerFactory.getLogger(FileSystemFileAccess.class);
+	// smaller files are read in a single system call, cheaper than a mapping
+	private static final long MAPPED_READ_MIN_SIZE = 64 * 1024;
+	private final Vertx vertx;
 	private final FileSystem fs;
 	private final boolean flat;
+	private final boolean mappedReads;
+	private final AtomicLong mappings = new AtomicLong();
 
 	public FileSystemFileAccess(Vertx vertx, boolean flat) {
+		this(vertx, flat, false);
+	}
+
+	/**
+	 * @param mappedReads whether the sources are memory mapped instead of being read in the heap, so probing
+	 *                    them only touches the pages of their headers and decoding them reads the page cache
+	 */
+	public FileSystemFileAccess(Vertx vertx, boolean flat, boolean mappedReads) {
+		this.vertx = vertx;
 		this.fs = vertx.fileSystem();
 		this.flat = flat;
+		this.mappedReads = mappedReads;
 	}
 
 	@Override
@@ -59,18 +86,99 @@ public class FileSystemFileAccess implements FileAccess {
 			handler.handle(null);
 			return;
 		}
+		if (mappedReads) {
+			readMapped(p, handler);
+			return;
+		}
 		fs.readFile(p, new Handler<AsyncResult<Buffer>>() {
 			@Override
 			public void handle(AsyncResult<Buffer> ar) {
 				if (ar.succeeded()) {
-					handler.handle(new ImageFile(ar.result().getBytes(), getFileName(p), getContentType(p)));
+					handler.handle(new ImageFile(ar.result(), getFileName(p), getContentType(p)));
+				} else {
+					handler.handle(null);
+				}
+			}
+		});
+	}
+
+	private void readMapped(final String p, final Handler<ImageFile> handler) {
+		vertx.executeBlocking(new Handler<Promise<ImageFile>>() {
+			@Override
+			public void handle(Promise<ImageFile> promise) {
+				try (FileChannel channel = FileChannel.open(Paths.get(p), StandardOpenOption.READ)) {
+					final long size = channel.size();
+					if (size > Integer.MAX_VALUE) {
+						throw new IOException("File too large to be mapped : " + p);
+					}
+					final ImageFile img;
+					if (size < MAPPED_READ_MIN_SIZE) {
+						final ByteBuffer data = ByteBuffer.allocate((int) size);
+						while (data.hasRemaining() && channel.read(data) >= 0);
+						img = new ImageFile(data.array(), getFileName(p), getContentType(p));
+					} else {
+						// the mapping stays valid once the channel is closed
+						img = new ImageFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, size),
+								getFileName(p), getContentType(p));
+						mappings.incrementAndGet();
+					}
+					promise.complete(img);
+				} catch (IOException e) {
+					promise.fail(e);
+				}
+			}
+		}, false, new Handler<AsyncResult<ImageFile>>() {
+			@Override
+			public void handle(AsyncResult<ImageFile> ar) {
+				if (ar.succeeded()) {
+					handler.handle(ar.result());
 				} else {
+					log.debug("Error mapping file " + p, ar.cause());
 					handler.handle(null);
 				}
 			}
 		});
 	}
 
+	@Override
+	public void readHeader(String src, final int length, final Handler<ImageFile> handler) {
+		final String[] path = parsePath(src);
+		if (mappedReads || path == null || path.length != 2 || !path[0].startsWith("/")) {
+			// mapped sources are probed reading only the pages of their header
+			handler.handle(null);
+			return;
+		}
+		final String p;
+		try {
+			p = getFilePath(path[0], path[1]);
+		} catch (FileNotFoundException e) {
+			handler.handle(null);
+			return;
+		}
+		fs.open(p, new OpenOptions().setRead(true), new Handler<AsyncResult<AsyncFile>>() {
+			@Override
+			public void handle(AsyncResult<AsyncFile> ar) {
+				if (ar.failed()) {
+					handler.handle(null);
+					return;
+				}
+				final AsyncFile file = ar.result();
+				file.read(Buffer.buffer(length), 0, 0, length, new Handler<AsyncResult<Buffer>>() {
+					@Override
+					public void handle(AsyncResult<Buffer> res) {
+						file.close();
+						if (res.succeeded()) {
+							handler.handle(new ImageFile(res.result(), getFileName(p), getContentType(p)));
+						} else {
+							log.debug("Error reading header of " + p, res.cause());
+							handler.handle(null);
+						}
+					}
+				});
+			}
+		});
+	}
+
 	@Override
 	public void write(String dest, final ImageFile img, final Handler<String> handler) {
 		final String[] path = parsePath(dest);
@@ -79,12 +187,7 @@ public class FileSystemFileAccess implements FileAccess {
 			return;
 		}
 
-		final String id;
-		if (path.length == 2 && path[1] != null && !path[1].trim().isEmpty()) {
-			id = path[1];
-		} else {
-			id = UUID.randomUUID().toString();
-		}
+		final String id = getId(path);
 		final String p;
 		try {
 			p = getFilePath(path[0], id);
@@ -97,7 +200,7 @@ public class FileSystemFileAccess implements FileAccess {
 			@Override
 			public void handle(AsyncResult<Void> event) {
 				if (event.succeeded()) {
-					fs.writeFile(p, Buffer.buffer(img.getData()), new Handler<AsyncResult<Void>>() {
+					fs.writeFile(p, img.toBuffer(), new Handler<AsyncResult<Void>>() {
 						@Override
 						public void handle(AsyncResult<Void> ar) {
 							if (ar.succeeded()) {
@@ -115,10 +218,64 @@ public class FileSystemFileAccess implements FileAccess {
 		});
 	}
 
+	@Override
+	public ImageOutput openOutput(String dest) throws IOException {
+		final String[] path = parsePath(dest);
+		if (path == null || path.length < 1 || !path[0].startsWith("/")) {
+			throw new FileNotFoundException("Invalid destination : " + dest);
+		}
+		final String id = getId(path);
+		final Path p = Paths.get(getFilePath(path[0], id));
+		Files.createDirectories(p.getParent());
+		// written next to the destination so it is renamed atomically
+		final Path tmp = p.resolveSibling(p.getFileName() + "." + UUID.randomUUID() + ".tmp");
+		return new FileImageOutput(id, p, tmp);
+	}
+
+	@Override
+	public void getVersion(String src, final Handler<String> handler) {
+		final String[] path = parsePath(src);
+		if (path == null || path.length != 2 || !path[0].startsWith("/")) {
+			handler.handle(null);
+			return;
+		}
+		final String p;
+		try {
+			p = getFilePath(path[0], path[1]);
+		} catch (FileNotFoundException e) {
+			handler.handle(null);
+			return;
+		}
+		fs.props(p, new Handler<AsyncResult<FileProps>>() {
+			@Override
+			public void handle(AsyncResult<FileProps> ar) {
+				if (ar.succeeded()) {
+					handler.handle(ar.result().size() + "-" + ar.result().lastModifiedTime());
+				} else {
+					handler.handle(null);
+				}
+			}
+		});
+	}
+
 	@Override
 	public void close() {
 	}
 
+	/**
+	 * Number of sources read through a memory mapping, the smaller sources being read in the heap.
+	 */
+	public long getMappedReads() {
+		return mappings.get();
+	}
+
+	private String getId(String[] path) {
+		if (path.length == 2 && path[1] != null && !path[1].trim().isEmpty()) {
+			return path[1];
+		}
+		return UUID.randomUUID().toString();
+	}
+
 	private String[] parsePath(String path) {
 		String[] p = path.split("://");
 		if (p == null || p.length != 2) {
@@ -191,4 +348,56 @@ public class FileSystemFileAccess implements FileAccess {
 		}
 	}
 
+	private static final class FileImageOutput implements ImageOutput {
+
+		private final String id;
+		private final Path path;
+		private final Path tmp;
+		private final FileImageOutputStream stream;
+
+		private FileImageOutput(String id, Path path, Path tmp) throws IOException {
+			this.id = id;
+			this.path = path;
+			this.tmp = tmp;
+			this.stream = new FileImageOutputStream(tmp.toFile());
+		}
+
+		@Override
+		public ImageOutputStream getStream() {
+			return stream;
+		}
+
+		@Override
+		public String getId() {
+			return id;
+		}
+
+		@Override
+		public long commit() throws IOException {
+			final long size = stream.length();
+			stream.close();
+			try {
+				Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+			return size;
+		}
+
+		@Override
+		public void abort() {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				log.debug("Error closing " + tmp, e);
+			}
+			try {
+				Files.deleteIfExists(tmp);
+			} catch (IOException e) {
+				log.error("Error deleting " + tmp, e);
+			}
+		}
+
+	}
+
 }
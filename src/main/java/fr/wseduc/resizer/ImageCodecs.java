@@ -0,0 +1,171 @@
+package fr.wseduc.resizer;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ImageIO plugins resolved once, with pools of reusable readers and writers.
+ * Borrowed instances must be given back with {@link #release(ImageReader)} or {@link #release(ImageWriter)}
+ * which reset them instead of disposing them.
+ */
+public class ImageCodecs {
+
+	private static final Logger log = LoggerFactory.getLogger(ImageCodecs.class);
+	private static final String CLIB_PNG_IMAGE_WRITER = "CLibPNGImageWriter";
+	private static ImageCodecs instance;
+
+	private final List<ImageReaderSpi> readerSpis = new ArrayList<>();
+	private final Map<String, ImageWriterSpi> writerSpis = new HashMap<>();
+	private final ConcurrentHashMap<Object, BlockingQueue<ImageReader>> readers = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Object, BlockingQueue<ImageWriter>> writers = new ConcurrentHashMap<>();
+	private final int poolSize;
+	private final AtomicLong readerHits = new AtomicLong();
+	private final AtomicLong readerMisses = new AtomicLong();
+	private final AtomicLong writerHits = new AtomicLong();
+	private final AtomicLong writerMisses = new AtomicLong();
+
+	private ImageCodecs(int poolSize) {
+		this.poolSize = Math.max(1, poolSize);
+		final IIORegistry registry = IIORegistry.getDefaultInstance();
+		final Iterator<ImageReaderSpi> rs = registry.getServiceProviders(ImageReaderSpi.class, true);
+		while (rs.hasNext()) {
+			readerSpis.add(rs.next());
+		}
+		final Iterator<ImageWriterSpi> ws = registry.getServiceProviders(ImageWriterSpi.class, true);
+		while (ws.hasNext()) {
+			final ImageWriterSpi spi = ws.next();
+			for (String formatName : spi.getFormatNames()) {
+				final String format = formatName.toLowerCase();
+				final ImageWriterSpi current = writerSpis.get(format);
+				if (current == null || ("png".equals(format) && spi.getPluginClassName().endsWith(CLIB_PNG_IMAGE_WRITER)
+						&& !current.getPluginClassName().endsWith(CLIB_PNG_IMAGE_WRITER))) {
+					writerSpis.put(format, spi);
+				}
+			}
+		}
+		log.info("Image codecs registered : " + readerSpis.size() + " readers, writers for " + writerSpis.keySet());
+	}
+
+	public static synchronized ImageCodecs getInstance(int poolSize) {
+		if (instance == null) {
+			instance = new ImageCodecs(poolSize);
+		}
+		return instance;
+	}
+
+	/**
+	 * Borrow a reader able to decode the stream.
+	 * @return the reader or null if the format isn't supported
+	 */
+	public ImageReader getReader(ImageInputStream iis) throws IOException {
+		for (ImageReaderSpi spi : readerSpis) {
+			iis.mark();
+			final boolean canDecode;
+			try {
+				canDecode = spi.canDecodeInput(iis);
+			} finally {
+				iis.reset();
+			}
+			if (canDecode) {
+				final ImageReader reader = getPool(readers, spi).poll();
+				if (reader != null) {
+					readerHits.incrementAndGet();
+					return reader;
+				}
+				readerMisses.incrementAndGet();
+				return spi.createReaderInstance();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Borrow a writer for the format.
+	 * @return the writer or null if the format isn't supported
+	 */
+	public ImageWriter getWriter(String format) throws IOException {
+		final ImageWriterSpi spi = (format != null) ? writerSpis.get(format.toLowerCase()) : null;
+		if (spi == null) {
+			return null;
+		}
+		final ImageWriter writer = getPool(writers, spi).poll();
+		if (writer != null) {
+			writerHits.incrementAndGet();
+			return writer;
+		}
+		writerMisses.incrementAndGet();
+		return spi.createWriterInstance();
+	}
+
+	public boolean canWrite(String format) {
+		return format != null && writerSpis.containsKey(format.toLowerCase());
+	}
+
+	/**
+	 * Whether the formats are written by the same writer.
+	 */
+	public boolean isSameWriter(String format, String other) {
+		if (format == null || other == null) {
+			return false;
+		}
+		final ImageWriterSpi spi = writerSpis.get(format.toLowerCase());
+		return spi != null && spi == writerSpis.get(other.toLowerCase());
+	}
+
+	public void release(ImageReader reader) {
+		final BlockingQueue<ImageReader> pool = (reader.getOriginatingProvider() != null) ?
+				readers.get(reader.getOriginatingProvider()) : null;
+		reader.reset();
+		if (pool == null || !pool.offer(reader)) {
+			reader.dispose();
+		}
+	}
+
+	public void release(ImageWriter writer) {
+		final BlockingQueue<ImageWriter> pool = (writer.getOriginatingProvider() != null) ?
+				writers.get(writer.getOriginatingProvider()) : null;
+		writer.reset();
+		if (pool == null || !pool.offer(writer)) {
+			writer.dispose();
+		}
+	}
+
+	public JsonObject getStats() {
+		return new JsonObject()
+				.put("reader-hits", readerHits.get())
+				.put("reader-misses", readerMisses.get())
+				.put("writer-hits", writerHits.get())
+				.put("writer-misses", writerMisses.get());
+	}
+
+	private <T> BlockingQueue<T> getPool(ConcurrentHashMap<Object, BlockingQueue<T>> pools, Object spi) {
+		BlockingQueue<T> pool = pools.get(spi);
+		if (pool == null) {
+			pool = new ArrayBlockingQueue<>(poolSize);
+			final BlockingQueue<T> p = pools.putIfAbsent(spi, pool);
+			if (p != null) {
+				pool = p;
+			}
+		}
+		return pool;
+	}
+
+}
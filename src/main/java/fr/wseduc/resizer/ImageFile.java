@@ -17,21 +17,29 @@
 package fr.wseduc.resizer;
 
 
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
-public final class ImageFile {
+public final class ImageFile implements SingleFlight.Shared {
 
 	private final InputStream inputStream;
 	private final byte[] data;
+	private final ByteBuffer buffer;
+	private final OutputBuffer owner;
 	private final String filename;
 	private final String contentType;
 
 	public ImageFile(InputStream inputStream, String filename, String contentType) {
 		this.inputStream = inputStream;
 		this.data = null;
+		this.buffer = null;
+		this.owner = null;
 		this.filename = filename;
 		this.contentType = contentType;
 	}
@@ -39,17 +47,102 @@ public final class ImageFile {
 	public ImageFile(byte[] data, String filename, String contentType) {
 		this.inputStream = null;
 		this.data = data;
+		this.buffer = null;
+		this.owner = null;
+		this.filename = filename;
+		this.contentType = contentType;
+	}
+
+	/**
+	 * Image held in a buffer, e.g. a memory mapped file, which is read without being copied to the heap.
+	 */
+	public ImageFile(ByteBuffer buffer, String filename, String contentType) {
+		this(buffer, null, filename, contentType);
+	}
+
+	/**
+	 * Encoded image, whose buffer goes back to its pool once the image is released.
+	 */
+	public ImageFile(OutputBuffer buffer, String filename, String contentType) {
+		this(buffer.toByteBuffer(), buffer, filename, contentType);
+	}
+
+	private ImageFile(ByteBuffer buffer, OutputBuffer owner, String filename, String contentType) {
+		this.inputStream = null;
+		this.data = null;
+		this.buffer = buffer;
+		this.owner = owner;
 		this.filename = filename;
 		this.contentType = contentType;
 	}
 
+	/**
+	 * Image held in a Vert.x buffer, viewed without copy.
+	 */
+	public ImageFile(Buffer buffer, String filename, String contentType) {
+		this(buffer.getByteBuf().nioBuffer(), filename, contentType);
+	}
+
+	/**
+	 * Add holders of the image, each of them calling {@link #release()}.
+	 */
+	@Override
+	public void retain(int count) {
+		if (owner != null) {
+			owner.retain(count);
+		}
+	}
+
+	/**
+	 * Release the image once written, its content mustn't be read after.
+	 */
+	public void release() {
+		if (owner != null) {
+			owner.release();
+		}
+	}
+
 	public InputStream getInputStream() {
 		if (inputStream == null && data != null) {
 			return new ByteArrayInputStream(data);
+		} else if (inputStream == null && buffer != null) {
+			return new ByteArrayInputStream(getData());
 		}
 		return inputStream;
 	}
 
+	/**
+	 * The image content, without copy when the image is held in an array or a buffer.
+	 * @return a buffer positioned on the image or null if the image can't be read
+	 */
+	public ByteBuffer getBuffer() {
+		if (buffer != null) {
+			return buffer.duplicate();
+		}
+		final byte[] d = getData();
+		return (d != null) ? ByteBuffer.wrap(d) : null;
+	}
+
+	/**
+	 * The image content as a Vert.x buffer, wrapping the array or the buffer of the image without copy.
+	 * @return the buffer or null if the image can't be read
+	 */
+	public Buffer toBuffer() {
+		final ByteBuffer b = getBuffer();
+		return (b != null) ? Buffer.buffer(Unpooled.wrappedBuffer(b)) : null;
+	}
+
+	/**
+	 * @return the size of the image or -1 if the image can't be read
+	 */
+	public int getSize() {
+		if (buffer != null) {
+			return buffer.remaining();
+		}
+		final byte[] d = getData();
+		return (d != null) ? d.length : -1;
+	}
+
 	public String getFilename() {
 		return filename;
 	}
@@ -59,6 +152,11 @@ public final class ImageFile {
 	}
 
 	public byte[] getData() {
+		if (buffer != null) {
+			final byte[] bytes = new byte[buffer.remaining()];
+			buffer.duplicate().get(bytes);
+			return bytes;
+		}
 		if (data == null && inputStream != null) {
 			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 			int nRead;
@@ -0,0 +1,30 @@
+package fr.wseduc.resizer;
+
+import javax.imageio.stream.ImageOutputStream;
+import java.io.IOException;
+
+/**
+ * Image written straight to its destination by an encoder. The image is only visible at its destination
+ * once committed. The stream does blocking I/O and must be used on the processing pool.
+ */
+public interface ImageOutput {
+
+	ImageOutputStream getStream();
+
+	/**
+	 * Id of the image in its destination, as returned by {@link FileAccess#write}.
+	 */
+	String getId();
+
+	/**
+	 * Close the stream and make the image visible at its destination.
+	 * @return the size of the image
+	 */
+	long commit() throws IOException;
+
+	/**
+	 * Close the stream and discard what was written.
+	 */
+	void abort();
+
+}
@@ -0,0 +1,544 @@
+package fr.wseduc.resizer;
+
+import com.drew.imaging.ImageMetadataReader;
+import com.drew.imaging.ImageProcessingException;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Result of a single parse of the image header : format, dimensions, EXIF orientation
+ * and the ImageReader positioned on the image, ready to decode it.
+ * A probe can also wrap a source already decoded (see {@link DecodedCache}), parts of it being read from memory.
+ */
+public final class ImageProbe {
+
+	private static final Logger log = LoggerFactory.getLogger(ImageProbe.class);
+	public static final int ORIENTATION_NORMAL = 1;
+	private static final int EXIF_ORIENTATION_TAG = 0x0112;
+	private static final int EXIF_THUMBNAIL_OFFSET_TAG = 0x0201;
+	private static final int EXIF_THUMBNAIL_LENGTH_TAG = 0x0202;
+	private static final int PNG_EXIF_CHUNK = 0x65584966;
+	private static final int PNG_TEXT_CHUNK = 0x74455874;
+	private static final int PNG_COMPRESSED_TEXT_CHUNK = 0x7a545874;
+	private static final int PNG_INTERNATIONAL_TEXT_CHUNK = 0x69545874;
+	private static final int PNG_END_CHUNK = 0x49454e44;
+	// IJG standard luminance quantization table, scaled by the libjpeg quality factor
+	private static final int[] STD_LUMINANCE_TABLE = {
+			16, 11, 10, 16, 24, 40, 51, 61,
+			12, 12, 14, 19, 26, 58, 60, 55,
+			14, 13, 16, 24, 40, 57, 69, 56,
+			14, 17, 22, 29, 51, 87, 80, 62,
+			18, 22, 37, 56, 68, 109, 103, 77,
+			24, 35, 55, 64, 81, 104, 113, 92,
+			49, 64, 78, 87, 103, 121, 120, 101,
+			72, 92, 95, 98, 112, 100, 103, 99
+	};
+
+	private final ImageCodecs codecs;
+	private final ImageReader reader;
+	private final ImageInputStream stream;
+	private final String format;
+	private final int width;
+	private final int height;
+	private final int orientation;
+	private BufferedImage image;
+	private DecodedCache.Pending decoded;
+	private DecodedCache.Entry entry;
+	private boolean disposed;
+
+	private ImageProbe(ImageCodecs codecs, ImageReader reader, ImageInputStream stream, String format,
+			int width, int height, int orientation, BufferedImage image) {
+		this.codecs = codecs;
+		this.reader = reader;
+		this.stream = stream;
+		this.format = format;
+		this.width = width;
+		this.height = height;
+		this.orientation = orientation;
+		this.image = image;
+	}
+
+	/**
+	 * Wrap a cached decoded source. Reading it ignores the sub-sampling of the read param, the caller scaling
+	 * the image it gets.
+	 */
+	public static ImageProbe decoded(DecodedCache.Entry entry) {
+		final ImageProbe probe = new ImageProbe(null, null, null, entry.getFormat(), entry.getImage().getWidth(),
+				entry.getImage().getHeight(), entry.getOrientation(), entry.getImage());
+		probe.entry = entry;
+		return probe;
+	}
+
+	/**
+	 * Read the image header.
+	 * @param data the encoded image
+	 * @param codecs the codecs the reader is borrowed from
+	 * @return the probe or null if no ImageIO reader supports the image
+	 * @throws IOException if the header can't be read
+	 */
+	public static ImageProbe probe(ByteBuffer data, ImageCodecs codecs) throws IOException {
+		return probe(data, codecs, true);
+	}
+
+	/**
+	 * Read the format and dimensions from the first bytes of an image, which may end anywhere after them.
+	 * The orientation isn't parsed from such a partial source : the probe has the normal orientation.
+	 * @param header the first bytes of the encoded image
+	 * @see #probe(ByteBuffer, ImageCodecs)
+	 */
+	public static ImageProbe probeHeader(ByteBuffer header, ImageCodecs codecs) throws IOException {
+		return probe(header, codecs, false);
+	}
+
+	private static ImageProbe probe(ByteBuffer data, ImageCodecs codecs, boolean orientation) throws IOException {
+		final ImageInputStream iis = new ByteBufferImageInputStream(data);
+		final ImageReader reader = codecs.getReader(iis);
+		if (reader == null) {
+			iis.close();
+			return null;
+		}
+		try {
+			reader.setInput(iis, true);
+			final String format = reader.getFormatName().toLowerCase();
+			final int width = reader.getWidth(0);
+			final int height = reader.getHeight(0);
+			final int o;
+			if (!orientation) {
+				o = ORIENTATION_NORMAL;
+			} else if ("jpeg".equals(format)) {
+				o = getJpegOrientation(data);
+			} else {
+				o = getOrientation(data);
+			}
+			return new ImageProbe(codecs, reader, iis, format, width, height, o, null);
+		} catch (IOException | RuntimeException e) {
+			codecs.release(reader);
+			iis.close();
+			throw e;
+		}
+	}
+
+	public ImageReadParam getDefaultReadParam() {
+		if (image != null) {
+			return new ImageReadParam();
+		}
+		return reader.getDefaultReadParam();
+	}
+
+	/**
+	 * Decode the image then release the reader. When the decoded image is cached, the whole image is decoded
+	 * and the region of the read param is taken from it, its sub-sampling being ignored as for a cached source.
+	 */
+	public BufferedImage read(ImageReadParam param) throws IOException {
+		if (image != null) {
+			return getRegion(param);
+		}
+		try {
+			if (decoded == null) {
+				return reader.read(0, param);
+			}
+			image = reader.read(0, reader.getDefaultReadParam());
+			final DecodedCache.Pending pending = decoded;
+			decoded = null;
+			setEntry(pending.put(image, format, orientation));
+			return getRegion(param);
+		} finally {
+			dispose();
+		}
+	}
+
+	/**
+	 * Decode the whole image at full resolution when it's read, to fill the room reserved in the decoded cache.
+	 * The room is cancelled if the probe is disposed without being read.
+	 */
+	public void setDecoded(DecodedCache.Pending decoded) {
+		this.decoded = decoded;
+	}
+
+	private synchronized void setEntry(DecodedCache.Entry entry) {
+		this.entry = entry;
+	}
+
+	/**
+	 * Release the cached decoded source read by the probe, once its rasters aren't used anymore.
+	 */
+	public void releaseDecoded() {
+		final DecodedCache.Entry e;
+		synchronized (this) {
+			e = entry;
+			entry = null;
+		}
+		if (e != null) {
+			e.release();
+		}
+	}
+
+	/**
+	 * Whether the probe wraps an already decoded source.
+	 */
+	public boolean isDecoded() {
+		return image != null;
+	}
+
+	public synchronized void dispose() {
+		if (decoded != null) {
+			decoded.cancel();
+			decoded = null;
+		}
+		if (disposed || reader == null) {
+			return;
+		}
+		disposed = true;
+		codecs.release(reader);
+		try {
+			stream.close();
+		} catch (IOException e) {
+			log.debug("Error closing image stream.", e);
+		}
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getOrientation() {
+		return orientation;
+	}
+
+	private BufferedImage getRegion(ImageReadParam param) {
+		final Rectangle region = param.getSourceRegion();
+		if (region == null) {
+			return image;
+		}
+		final Rectangle r = region.intersection(new Rectangle(0, 0, width, height));
+		return image.getSubimage(r.x, r.y, r.width, r.height);
+	}
+
+	/**
+	 * Find the orientation tag in the EXIF APP1 segment without going further than the start of scan.
+	 */
+	private static int getJpegOrientation(ByteBuffer data) {
+		final ByteBuffer b = data.slice().order(ByteOrder.BIG_ENDIAN);
+		try {
+			final int[] exif = getExifSegment(b);
+			if (exif != null) {
+				return getTiffOrientation(b, exif[0], exif[1]);
+			}
+		} catch (IndexOutOfBoundsException e) {
+			log.debug("Truncated jpeg header.");
+		}
+		return ORIENTATION_NORMAL;
+	}
+
+	/**
+	 * Probe the thumbnail embedded in the EXIF segment of a jpeg (IFD1, JPEG interchange format).
+	 * @param data the encoded jpeg
+	 * @param codecs the codecs the reader is borrowed from
+	 * @param orientation the orientation of the main image, which also applies to the thumbnail
+	 * @return the probe of the thumbnail or null if the jpeg has no jpeg thumbnail
+	 * @throws IOException if the thumbnail header can't be read
+	 */
+	public static ImageProbe probeThumbnail(ByteBuffer data, ImageCodecs codecs, int orientation)
+			throws IOException {
+		final ByteBuffer b = data.slice().order(ByteOrder.BIG_ENDIAN);
+		final ByteBuffer thumbnail;
+		try {
+			final int[] exif = getExifSegment(b);
+			if (exif == null) {
+				return null;
+			}
+			final int tiff = exif[0];
+			final ByteBuffer tb = b.duplicate().order(b.getShort(tiff) == 0x4949 ?
+					ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+			final int ifd0 = tiff + tb.getInt(tiff + 4);
+			final int ifd1Offset = tb.getInt(ifd0 + 2 + 12 * (tb.getShort(ifd0) & 0xffff));
+			if (ifd1Offset <= 0) {
+				return null;
+			}
+			final int ifd1 = tiff + ifd1Offset;
+			final int entries = tb.getShort(ifd1) & 0xffff;
+			int offset = -1;
+			int length = -1;
+			for (int i = 0; i < entries; i++) {
+				final int entry = ifd1 + 2 + 12 * i;
+				if (entry + 12 > exif[1]) {
+					break;
+				}
+				final int tag = tb.getShort(entry) & 0xffff;
+				if (tag == EXIF_THUMBNAIL_OFFSET_TAG) {
+					offset = tb.getInt(entry + 8);
+				} else if (tag == EXIF_THUMBNAIL_LENGTH_TAG) {
+					length = tb.getInt(entry + 8);
+				}
+			}
+			if (offset <= 0 || length <= 0 || tiff + offset + length > exif[1]) {
+				return null;
+			}
+			final ByteBuffer t = b.duplicate();
+			t.limit(tiff + offset + length);
+			t.position(tiff + offset);
+			thumbnail = t.slice();
+		} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+			log.debug("Invalid jpeg thumbnail.");
+			return null;
+		}
+		final ImageProbe probe = probe(thumbnail, codecs);
+		if (probe == null) {
+			return null;
+		}
+		return new ImageProbe(codecs, probe.reader, probe.stream, probe.format, probe.width, probe.height,
+				orientation, null);
+	}
+
+	/**
+	 * Find the EXIF APP1 segment without going further than the start of scan.
+	 * @return the position of the TIFF header and the end of the segment, or null if there is no EXIF segment
+	 */
+	private static int[] getExifSegment(ByteBuffer b) {
+		int pos = 2;
+		while (pos + 4 <= b.limit()) {
+			if ((b.get(pos) & 0xff) != 0xff) {
+				break;
+			}
+			final int marker = b.get(pos + 1) & 0xff;
+			if (marker == 0xff) {
+				pos++;
+				continue;
+			}
+			if (marker == 0xda || marker == 0xd9) {
+				break;
+			}
+			final int length = b.getShort(pos + 2) & 0xffff;
+			if (marker == 0xe1 && length >= 16 && b.getInt(pos + 4) == 0x45786966 && b.getShort(pos + 8) == 0) {
+				return new int[]{pos + 10, Math.min(b.limit(), pos + 2 + length)};
+			}
+			pos += 2 + length;
+		}
+		return null;
+	}
+
+	/**
+	 * Whether the image may hold metadata about its author or its capture (EXIF with the GPS position, XMP, IPTC,
+	 * comments and text chunks), which writing the source untouched would publish. Jpeg and png are scanned,
+	 * the other formats are considered to hold metadata, bmp aside.
+	 */
+	public static boolean hasMetadata(ByteBuffer data, String format) {
+		switch (format) {
+			case "jpeg" :
+				return hasJpegMetadata(data);
+			case "png" :
+				return hasPngMetadata(data);
+			case "bmp" :
+			case "wbmp" :
+				return false;
+			default :
+				return true;
+		}
+	}
+
+	/**
+	 * Find an APP1 (EXIF, XMP), APP13 (IPTC) or comment segment without going further than the start of scan.
+	 */
+	private static boolean hasJpegMetadata(ByteBuffer data) {
+		final ByteBuffer b = data.slice().order(ByteOrder.BIG_ENDIAN);
+		try {
+			int pos = 2;
+			while (pos + 4 <= b.limit()) {
+				if ((b.get(pos) & 0xff) != 0xff) {
+					break;
+				}
+				final int marker = b.get(pos + 1) & 0xff;
+				if (marker == 0xff) {
+					pos++;
+					continue;
+				}
+				if (marker == 0xda || marker == 0xd9) {
+					break;
+				}
+				if (marker == 0xe1 || marker == 0xed || marker == 0xfe) {
+					return true;
+				}
+				pos += 2 + (b.getShort(pos + 2) & 0xffff);
+			}
+		} catch (IndexOutOfBoundsException e) {
+			log.debug("Truncated jpeg header.");
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Find an eXIf or text (tEXt, zTXt, iTXt holding the XMP) chunk, which may follow the image data.
+	 */
+	private static boolean hasPngMetadata(ByteBuffer data) {
+		final ByteBuffer b = data.slice().order(ByteOrder.BIG_ENDIAN);
+		long pos = 8;
+		while (pos + 8 <= b.limit()) {
+			final long length = b.getInt((int) pos) & 0xffffffffL;
+			final int type = b.getInt((int) pos + 4);
+			if (type == PNG_EXIF_CHUNK || type == PNG_TEXT_CHUNK || type == PNG_COMPRESSED_TEXT_CHUNK ||
+					type == PNG_INTERNATIONAL_TEXT_CHUNK) {
+				return true;
+			}
+			if (type == PNG_END_CHUNK) {
+				return false;
+			}
+			pos += 12 + length;
+		}
+		// truncated
+		return true;
+	}
+
+	/**
+	 * Estimate the quality a jpeg was encoded with, from the scale of its luminance quantization table
+	 * relative to the IJG standard table (the scale used by libjpeg and the ImageIO writer).
+	 * @return the quality between 0 and 1, or null if the header has no luminance table
+	 */
+	public static Float getJpegQuality(ByteBuffer data) {
+		final ByteBuffer b = data.slice().order(ByteOrder.BIG_ENDIAN);
+		try {
+			int pos = 2;
+			while (pos + 4 <= b.limit()) {
+				if ((b.get(pos) & 0xff) != 0xff) {
+					break;
+				}
+				final int marker = b.get(pos + 1) & 0xff;
+				if (marker == 0xff) {
+					pos++;
+					continue;
+				}
+				if (marker == 0xda || marker == 0xd9) {
+					break;
+				}
+				final int length = b.getShort(pos + 2) & 0xffff;
+				if (marker == 0xdb) {
+					final Float quality = getTableQuality(b, pos + 4, pos + 2 + length);
+					if (quality != null) {
+						return quality;
+					}
+				}
+				pos += 2 + length;
+			}
+		} catch (IndexOutOfBoundsException e) {
+			log.debug("Truncated jpeg header.");
+		}
+		return null;
+	}
+
+	/**
+	 * Quality of the luminance table (id 0) of a DQT segment, which may hold several tables.
+	 */
+	private static Float getTableQuality(ByteBuffer b, int pos, int end) {
+		while (pos < end) {
+			final int precision = (b.get(pos) & 0xf0) >> 4;
+			final int id = b.get(pos) & 0x0f;
+			pos++;
+			if (id == 0) {
+				long sum = 0;
+				long stdSum = 0;
+				for (int i = 0; i < 64; i++) {
+					sum += (precision == 0) ? (b.get(pos + i) & 0xff) : (b.getShort(pos + 2 * i) & 0xffff);
+					stdSum += STD_LUMINANCE_TABLE[i];
+				}
+				// the tables are zigzag ordered, the ratio of the sums doesn't depend on the order
+				final double scale = 100d * sum / stdSum;
+				final double quality = (scale <= 100) ? (200 - scale) / 2 : 5000 / scale;
+				return Math.max(1, Math.min(100, Math.round(quality))) / 100f;
+			}
+			pos += (precision == 0) ? 64 : 128;
+		}
+		return null;
+	}
+
+	private static int getTiffOrientation(ByteBuffer b, int tiff, int end) {
+		final ByteOrder order = b.getShort(tiff) == 0x4949 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		final ByteBuffer tb = b.duplicate().order(order);
+		final int ifd = tiff + tb.getInt(tiff + 4);
+		final int entries = tb.getShort(ifd) & 0xffff;
+		for (int i = 0; i < entries; i++) {
+			final int entry = ifd + 2 + 12 * i;
+			if (entry + 12 > end) {
+				break;
+			}
+			if ((tb.getShort(entry) & 0xffff) == EXIF_ORIENTATION_TAG) {
+				final int orientation = tb.getShort(entry + 8) & 0xffff;
+				return (orientation >= 1 && orientation <= 8) ? orientation : ORIENTATION_NORMAL;
+			}
+		}
+		return ORIENTATION_NORMAL;
+	}
+
+	private static int getOrientation(ByteBuffer data) {
+		try {
+			final Metadata metadata = ImageMetadataReader.readMetadata(toInputStream(data));
+			final ExifIFD0Directory directory = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+			if (directory != null) {
+				final Integer orientation = directory.getInteger(ExifIFD0Directory.TAG_ORIENTATION);
+				if (orientation != null) {
+					return orientation;
+				}
+			}
+		} catch (IOException|ImageProcessingException e) {
+			log.error("Image orientation error", e);
+		}
+		return ORIENTATION_NORMAL;
+	}
+
+	private static InputStream toInputStream(ByteBuffer data) {
+		if (data.hasArray()) {
+			return new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		}
+		// mapped files are read in place, the metadata reader only touching the pages of the headers
+		final ByteBuffer b = data.duplicate();
+		return new InputStream() {
+			@Override
+			public int read() {
+				return b.hasRemaining() ? b.get() & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] bytes, int off, int len) {
+				if (!b.hasRemaining()) {
+					return -1;
+				}
+				final int n = Math.min(len, b.remaining());
+				b.get(bytes, off, n);
+				return n;
+			}
+
+			@Override
+			public long skip(long n) {
+				final int skipped = (int) Math.max(0, Math.min(n, b.remaining()));
+				b.position(b.position() + skipped);
+				return skipped;
+			}
+
+			@Override
+			public int available() {
+				return b.remaining();
+			}
+		};
+	}
+
+}
@@ -16,12 +16,8 @@
 
 package fr.wseduc.resizer;
 
-import com.drew.imaging.ImageMetadataReader;
-import com.drew.imaging.ImageProcessingException;
-import com.drew.metadata.Directory;
-import com.drew.metadata.Metadata;
-import com.drew.metadata.Tag;
-import com.drew.metadata.exif.ExifIFD0Directory;
+import fr.wseduc.webutils.DefaultAsyncResult;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Handler;
 import io.vertx.core.Promise;
 import io.vertx.core.eventbus.Message;
@@ -33,20 +29,27 @@ import org.imgscalr.Scalr;
 import org.vertx.java.busmods.BusModBase;
 
 import javax.imageio.*;
-import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static fr.wseduc.webutils.Utils.getOrElse;
 import static org.imgscalr.Scalr.*;
@@ -55,12 +58,37 @@ import static org.imgscalr.Scalr.*;
 public class ImageResizer extends BusModBase implements Handler<Message<JsonObject>> {
 	protected static final Logger logger = LoggerFactory.getLogger(ImageResizer.class);
 	public static final String JAI_TIFFIMAGE_WRITER = "com.sun.media.imageioimpl.plugins.tiff.TIFFImageWriter";
+	private static final long BYTES_PER_PIXEL = 4;
+	private static final int QUALITY_SEARCH_STEPS = 7;
+	public static final String MAX_BYTES_EXCEEDED = "max-bytes-exceeded";
+	private static final Set<String> LOSSY_FORMATS = new HashSet<>(Arrays.asList("jpeg", "jpg", "webp", "jpeg2000"));
 	private Map<String, FileAccess> fileAccessProviders = new HashMap<>();
 	private boolean allowImageEnlargement = false;
 	private int maxSurfaceForHighQualityScaling;
 	private int srcImageMaxWidthForResize;
 	private int srcImageMaxHeightForResize;
 	private boolean optimizedResizing;
+	private boolean cascadeResizing;
+	private float cascadeFactor;
+	private float subSamplingHeadroom;
+	private int batchPrefetch;
+	private boolean passthrough;
+	private boolean exifThumbnails;
+	private boolean streamingWrites;
+	private int sourceHeaderSize;
+	private String outputSettings;
+	private ProcessingPool processingPool;
+	private ImageCodecs codecs;
+	private MemoryBudget memoryBudget;
+	private DerivativeCache derivativeCache;
+	private DecodedCache decodedCache;
+	private SingleFlight singleFlight;
+	private BufferPool bufferPool;
+	private UploadScheduler uploadScheduler;
+	private FileSystemFileAccess fileSystemAccess;
+	private final AtomicLong regionReads = new AtomicLong();
+	private final AtomicLong exifThumbnailReads = new AtomicLong();
+	private final AtomicLong streamedWrites = new AtomicLong();
 
 	@Override
 	public void start(final Promise<Void> startedResult) {
@@ -75,15 +103,24 @@ public class ImageResizer extends BusModBase implements Handler<Message<JsonObje
 			String bucket = s3.getString("bucket");
 			String ssec = s3.getString("ssec", null);
 			if (uri != null && accessKey != null && secretKey != null && region != null && bucket != null) {
+				uploadScheduler = UploadScheduler.getInstance(
+						config.getInteger("s3-upload-concurrency", 16),
+						config.getInteger("s3-upload-bucket-concurrency", 8),
+						config.getInteger("s3-upload-retries", 3),
+						config.getLong("s3-upload-retry-delay", 200L),
+						config.getLong("s3-upload-hedge-delay", 0L));
 				try {
-					fileAccessProviders.put("s3", new S3Access(vertx, new URI(uri), accessKey, secretKey, region, bucket, ssec));
+					fileAccessProviders.put("s3", new S3Access(vertx, new URI(uri), accessKey, secretKey, region, bucket, ssec,
+							uploadScheduler));
 				} catch (URISyntaxException e) {
 					logger.error("Invalid s3 uri.", e);
 				}
 			}
 		}
 		else {
-			fileAccessProviders.put("file", new FileSystemFileAccess(vertx, config.getBoolean("fs-flat", false)));
+			fileSystemAccess = new FileSystemFileAccess(vertx, config.getBoolean("fs-flat", false),
+					config.getBoolean("fs-mapped-reads", false));
+			fileAccessProviders.put("file", fileSystemAccess);
 		}
 
 		allowImageEnlargement = config.getBoolean("allow-image-enlargement", false);
@@ -91,7 +128,58 @@ public class ImageResizer extends BusModBase implements Handler<Message<JsonObje
 		srcImageMaxWidthForResize = config.getInteger("resizing-src-image-max-width", 1440);
 		srcImageMaxHeightForResize = config.getInteger("resizing-src-image-max-height", 900);
 		maxSurfaceForHighQualityScaling = srcImageMaxWidthForResize * srcImageMaxHeightForResize;
-		registerHandler(startedResult);
+		cascadeResizing = config.getBoolean("resizing-cascade", false);
+		cascadeFactor = Math.max(1f, config.getFloat("resizing-cascade-factor", 2f));
+		subSamplingHeadroom = Math.max(1f, config.getFloat("resizing-subsampling-headroom", 2f));
+		final int processingPoolSize = config.getInteger("processing-pool-size",
+				Runtime.getRuntime().availableProcessors());
+		processingPool = ProcessingPool.getInstance(processingPoolSize,
+				config.getInteger("processing-queue-size", 256));
+		passthrough = config.getBoolean("resizing-passthrough", false);
+		exifThumbnails = config.getBoolean("exif-thumbnails", false);
+		streamingWrites = config.getBoolean("streaming-writes", false);
+		sourceHeaderSize = config.getInteger("source-header-size", 0);
+		outputSettings = getOperationKey("settings", allowImageEnlargement, optimizedResizing,
+				srcImageMaxWidthForResize, srcImageMaxHeightForResize, cascadeResizing, cascadeFactor,
+				subSamplingHeadroom, passthrough, exifThumbnails);
+		batchPrefetch = Math.max(1, config.getInteger("batch-prefetch", processingPoolSize));
+		codecs = ImageCodecs.getInstance(config.getInteger("codecs-pool-size", processingPoolSize));
+		memoryBudget = MemoryBudget.getInstance(
+				config.getLong("memory-budget", Runtime.getRuntime().maxMemory() / 2),
+				config.getInteger("memory-budget-queue-size", 64),
+				config.getLong("memory-budget-queue-timeout", 30000L));
+		derivativeCache = DerivativeCache.getInstance(
+				config.getLong("derivative-cache-size", 0L),
+				config.getLong("derivative-cache-max-entry-size", 1048576L),
+				config.getString("derivative-cache-dir"),
+				config.getLong("derivative-cache-disk-size", 1073741824L));
+		decodedCache = DecodedCache.getInstance(memoryBudget,
+				config.getLong("decoded-cache-size", 0L),
+				config.getLong("decoded-cache-ttl", 30000L));
+		if (decodedCache.isEnabled()) {
+			vertx.setPeriodic(Math.max(1000L, config.getLong("decoded-cache-ttl", 30000L)), new Handler<Long>() {
+				@Override
+				public void handle(Long id) {
+					decodedCache.purge();
+				}
+			});
+		}
+		if (config.getBoolean("coalesce-requests", true)) {
+			singleFlight = SingleFlight.getInstance();
+		}
+		bufferPool = BufferPool.getInstance(config.getLong("buffer-pool-size", 33554432L));
+		vertx.executeBlocking(new Handler<Promise<Void>>() {
+			@Override
+			public void handle(Promise<Void> promise) {
+				derivativeCache.loadDisk();
+				promise.complete();
+			}
+		}, false, new Handler<AsyncResult<Void>>() {
+			@Override
+			public void handle(AsyncResult<Void> ar) {
+				registerHandler(startedResult);
+			}
+		});
 	}
 
 	private void registerHandler(Promise<Void> startedResult) {
@@ -107,6 +195,21 @@ public class ImageResizer extends BusModBase implements Handler<Message<JsonObje
 		for (FileAccess fa: fileAccessProviders.values()) {
 			fa.close();
 		}
+		if (processingPool != null) {
+			processingPool.close();
+		}
+		if (memoryBudget != null) {
+			memoryBudget.close();
+		}
+		if (derivativeCache != null) {
+			derivativeCache.close();
+		}
+		if (bufferPool != null) {
+			bufferPool.close();
+		}
+		if (uploadScheduler != null) {
+			uploadScheduler.close();
+		}
 	}
 
 	@Override
@@ -124,17 +227,50 @@ public class ImageResizer extends BusModBase implements Handler<Message<JsonObje
 			case "compress" :
 				compress(m);
 				break;
+			case "pipeline" :
+				pipeline(m);
+				break;
+			case "resizeBatch" :
+				resizeBatch(m);
+				break;
+			case "stats" :
+				stats(m);
+				break;
 			default :
 				sendError(m, "Invalid or missing action");
 		}
 	}
 
+	private void stats(final Message<JsonObject> m) {
+		sendOK(m, new JsonObject()
+				.put("processing", new JsonObject()
+						.put("active", processingPool.getActiveCount())
+						.put("queued", processingPool.getQueueSize()))
+				.put("codecs", codecs.getStats())
+				.put("memory", memoryBudget.getStats())
+				.put("cache", derivativeCache.getStats())
+				.put("decoded-cache", decodedCache.getStats())
+				.put("coalescing", (singleFlight != null) ? singleFlight.getStats() : new JsonObject())
+				.put("buffers", bufferPool.getStats())
+				.put("uploads", (uploadScheduler != null) ? uploadScheduler.getStats() : new JsonObject())
+				.put("io", new JsonObject()
+						.put("region-reads", regionReads.get())
+						.put("exif-thumbnail-reads", exifThumbnailReads.get())
+						.put("mapped-reads", (fileSystemAccess != null) ? fileSystemAccess.getMappedReads() : 0L)
+						.put("streamed-writes", streamedWrites.get())));
+	}
+
 	private void compress(final Message<JsonObject> m) {
-		final Number quality = m.body().getFloat("quality");
+		final Integer maxBytes = m.body().getInteger("maxBytes");
+		final Number quality = m.body().getFloat("quality", (maxBytes != null) ? 1f : null);
 		if (quality == null || quality.floatValue() > 1f || quality.floatValue() <= 0f) {
 			sendError(m, "Invalid quality.");
 			return;
 		}
+		if (maxBytes != null && maxBytes <= 0) {
+			sendError(m, "Invalid maxBytes.");
+			return;
+		}
 		final FileAccess fSrc = getFileAccess(m, m.body().getString("src"));
 		if (fSrc == null) {
 			return;
@@ -143,19 +279,83 @@ public class ImageResizer extends BusModBase implements Handler<Message<JsonObje
 		if (fDest == null) {
 			return;
 		}
-		fSrc.read(m.body().getString("src"), new Handler<ImageFile>() {
+		if (maxBytes != null) {
+			compress(m, fSrc, fDest, quality.floatValue(), maxBytes);
+			return;
+		}
+		final String operation = getOperationKey("compress", quality.floatValue());
+		processAndPersist(m, fSrc, fDest, operation, new ImageTask<RenderedImage>() {
 			@Override
-			public void handle(ImageFile src) {
-				if (src == null) {
-					sendError(m, "Input file not found : " + m.body().getString("src"));
-					return;
-				}
-				try {
-					BufferedImage srcImg = ImageIO.read(src.getInputStream());
-					persistImage(src, srcImg, srcImg, fDest, quality.floatValue(), m);
-				} catch (IOException e) {
-					logger.error("Error processing image.", e);
-					sendError(m, "Error processing image.", e);
+			public long getMemoryCost(ImageProbe probe) {
+				return 2 * BYTES_PER_PIXEL * probe.getWidth() * probe.getHeight();
+			}
+
+			@Override
+			public RenderedImage passthrough(ImageFile src, ImageProbe probe) {
+				return isPassthrough(src, probe.getFormat(), probe.getOrientation(), quality.floatValue()) ?
+						RenderedImage.SOURCE : null;
+			}
+
+			@Override
+			public RenderedImage process(ImageFile src, ImageProbe probe, MemoryBudget.Reservation reservation)
+					throws Exception {
+				BufferedImage srcImg = probe.read(probe.getDefaultReadParam());
+				return new RenderedImage(srcImg, srcImg, new DecodedImage(srcImg, probe), quality.floatValue());
+			}
+		});
+	}
+
+	/**
+	 * Compress with the highest quality, up to the given one, giving an output of at most maxBytes.
+	 * The results aren't kept in the derivative cache, which doesn't record the chosen quality.
+	 */
+	private void compress(final Message<JsonObject> m, FileAccess fSrc, final FileAccess fDest,
+			final float maxQuality, final int maxBytes) {
+		final String operation = getOperationKey("compress", maxQuality, maxBytes);
+		coalesce(getFlightKey(m.body().getString("src"), operation), new Handler<Handler<AsyncResult<CompressedImage>>>() {
+			@Override
+			public void handle(final Handler<AsyncResult<CompressedImage>> handler) {
+				processImage(fSrc, m.body().getString("src"), new ImageTask<CompressedImage>() {
+					@Override
+					public long getMemoryCost(ImageProbe probe) {
+						return 2 * BYTES_PER_PIXEL * probe.getWidth() * probe.getHeight();
+					}
+
+					@Override
+					public CompressedImage passthrough(ImageFile src, ImageProbe probe) {
+						if (src.getSize() <= maxBytes &&
+								isPassthrough(src, probe.getFormat(), probe.getOrientation(), maxQuality)) {
+							// the quality the source was saved with, unknown for a lossless source
+							return new CompressedImage(src, "jpeg".equals(probe.getFormat()) ?
+									ImageProbe.getJpegQuality(src.getBuffer()) : null);
+						}
+						return null;
+					}
+
+					@Override
+					public CompressedImage process(ImageFile src, ImageProbe probe,
+							MemoryBudget.Reservation reservation) throws Exception {
+						try {
+							BufferedImage srcImg = probe.read(probe.getDefaultReadParam());
+							final BufferedImage imgToPersist = rotateImage(probe.getOrientation(), srcImg);
+							return compressImage(src, srcImg, imgToPersist, maxQuality, maxBytes);
+						} finally {
+							reservation.release();
+						}
+					}
+				}, handler);
+			}
+		}, new Handler<AsyncResult<CompressedImage>>() {
+			@Override
+			public void handle(AsyncResult<CompressedImage> ar) {
+				if (ar.succeeded()) {
+					final JsonObject reply = new JsonObject();
+					if (ar.result().quality != null) {
+						reply.put("quality", ar.result().quality);
+					}
+					persistImage(ar.result().file, fDest, m, reply);
+				} else {
+					sendProcessingError(m, ar.cause());
 				}
 			}
 		});
@@ -179,25 +379,32 @@ public class ImageResizer extends BusModBase implements Handler<Message<JsonObje
 		if (fDest == null) {
 			return;
 		}
-		fSrc.read(m.body().getString("src"), new Handler<ImageFile>() {
+		final String operation = getOperationKey("crop", x, y, width, height, quality);
+		processAndPersist(m, fSrc, fDest, operation, new ImageTask<RenderedImage>() {
 			@Override
-			public void handle(ImageFile src) {
-				if (src == null) {
-					sendError(m, "Input file not found.");
-					return;
-				}
-				try {
-					BufferedImage srcImg = ImageIO.read(src.getInputStream());
-					if (srcImg.getWidth() < (x + width) || srcImg.getHeight() < (y + height)) {
-						sendError(m, "Source image too small for crop.");
-						return;
-					}
-					BufferedImage cropped = Scalr.crop(srcImg, x, y, width, height);
-					persistImage(src, srcImg, cropped, fDest, quality, m);
-				} catch (IOException e) {
-					logger.error("Error processing image.", e);
-					sendError(m, "Error processing image.", e);
+			public long getMemoryCost(ImageProbe probe) {
+				return 2 * BYTES_PER_PIXEL * width * height;
+			}
+
+			@Override
+			public RenderedImage passthrough(ImageFile src, ImageProbe probe) {
+				return (x == 0 && y == 0 && width == probe.getWidth() && height == probe.getHeight() &&
+						isPassthrough(src, probe.getFormat(), probe.getOrientation(), quality)) ?
+						RenderedImage.SOURCE : null;
+			}
+
+			@Override
+			public RenderedImage process(ImageFile src, ImageProbe probe, MemoryBudget.Reservation reservation)
+					throws Exception {
+				if (probe.getWidth() < (x + width) || probe.getHeight() < (y + height)) {
+					probe.dispose();
+					throw new ResizerException("Source image too small for crop.");
 				}
+				// only the cropped region is decoded
+				final ImageReadParam param = probe.getDefaultReadParam();
+				setSourceRegion(probe, param, new Rectangle(x, y, width, height));
+				BufferedImage cropped = probe.read(param);
+				return new RenderedImage(cropped, cropped, new DecodedImage(cropped, probe), quality);
 			}
 		});
 	}
@@ -219,155 +426,1418 @@ public class ImageResizer extends BusModBase implements Handler<Message<JsonObje
 		if (fDest == null) {
 			return;
 		}
-		fSrc.read(m.body().getString("src"), new Handler<ImageFile>() {
+		final String operation = getOperationKey("resize", width, height, stretch, quality);
+		processAndPersist(m, fSrc, fDest, operation, new ImageTask<RenderedImage>() {
+			@Override
+			public long getMemoryCost(ImageProbe probe) {
+				final Rectangle region = getResizeRegion(probe);
+				final int[] need = getResizeNeed(probe, region);
+				return getDecodeCost(probe, need, region) +
+						((need != null) ? 2 * BYTES_PER_PIXEL * need[0] * need[1] : 0);
+			}
+
+			@Override
+			public RenderedImage passthrough(ImageFile src, ImageProbe probe) {
+				return (isUnchangedByResize(width, height, stretch, probe.getWidth(), probe.getHeight()) &&
+						isPassthrough(src, probe.getFormat(), probe.getOrientation(), quality)) ?
+						RenderedImage.SOURCE : null;
+			}
+
+			@Override
+			public RenderedImage process(ImageFile src, ImageProbe probe, MemoryBudget.Reservation reservation)
+					throws Exception {
+				final ImageProbe p = getThumbnailOrSource(src, probe,
+						getNeededSize(width, height, stretch, probe.getWidth(), probe.getHeight()));
+				final Rectangle region = getResizeRegion(p);
+				final BufferedImage img = getSrcImg(p, getResizeNeed(p, region), region);
+				// the size of the whole source, so a region or a thumbnail is never taken for the unchanged source
+				final DecodedImage decoded = new DecodedImage(img, probe.getWidth(), probe.getHeight(),
+						probe.getOrientation(), probe.getFormat());
+				return new RenderedImage(img, doResize(width, height, stretch, img, decoded), decoded, quality);
+			}
+
+			/**
+			 * Only the part of the source that will be kept by the crop is decoded
+			 */
+			private Rectangle getResizeRegion(ImageProbe probe) {
+				if (isCoverResize(width, height, stretch, probe.getWidth(), probe.getHeight())) {
+					return getCoverRegion(probe.getWidth(), probe.getHeight(), width, height);
+				}
+				return null;
+			}
+
+			private int[] getResizeNeed(ImageProbe probe, Rectangle region) {
+				if (region != null) {
+					return new int[]{width, height};
+				}
+				return getNeededSize(width, height, stretch, probe.getWidth(), probe.getHeight());
+			}
+		});
+	}
+
+	/**
+	 * Process the source, then encode the rendered image and write it to the destination. The image is encoded
+	 * in memory, where it is shared by the coalesced requests and cached, or straight to the destination when
+	 * writes are streamed and the derivative cache, which needs the encoded bytes, is disabled.
+	 */
+	private void processAndPersist(final Message<JsonObject> m, final FileAccess fSrc, final FileAccess fDest,
+			final String operation, final ImageTask<RenderedImage> task) {
+		final String path = m.body().getString("src");
+		if (streamingWrites && !derivativeCache.isEnabled()) {
+			final String dest = m.body().getString("dest");
+			final Handler<Handler<AsyncResult<StreamedImage>>> streamedOperation =
+					new Handler<Handler<AsyncResult<StreamedImage>>>() {
+				@Override
+				public void handle(Handler<AsyncResult<StreamedImage>> handler) {
+					processImage(fSrc, path, streamed(task, fDest, dest), handler);
+				}
+			};
+			final Handler<AsyncResult<StreamedImage>> streamedHandler = new Handler<AsyncResult<StreamedImage>>() {
+				@Override
+				public void handle(AsyncResult<StreamedImage> ar) {
+					if (ar.failed()) {
+						sendProcessingError(m, ar.cause());
+					} else if (ar.result().file != null) {
+						persistImage(ar.result().file, fDest, m);
+					} else {
+						sendOK(m, new JsonObject().put("output", ar.result().id).put("size", ar.result().size));
+					}
+				}
+			};
+			// streamed outputs are written by the request, only the requests writing the same named file coalesce :
+			// a destination without name gets a new file for each request
+			if (hasId(dest)) {
+				coalesce(getFlightKey(path, operation + "|" + dest), streamedOperation, streamedHandler);
+			} else {
+				streamedOperation.handle(streamedHandler);
+			}
+			return;
+		}
+		coalesce(getFlightKey(path, operation), new Handler<Handler<AsyncResult<ImageFile>>>() {
+			@Override
+			public void handle(Handler<AsyncResult<ImageFile>> handler) {
+				processImage(fSrc, path, operation, encoded(task), handler);
+			}
+		}, new Handler<AsyncResult<ImageFile>>() {
+			@Override
+			public void handle(AsyncResult<ImageFile> ar) {
+				if (ar.succeeded()) {
+					persistImage(ar.result(), fDest, m);
+				} else {
+					sendProcessingError(m, ar.cause());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Task encoding in memory the image rendered by the given task.
+	 */
+	private ImageTask<ImageFile> encoded(final ImageTask<RenderedImage> task) {
+		return new ImageTask<ImageFile>() {
+			@Override
+			public long getMemoryCost(ImageProbe probe) {
+				return task.getMemoryCost(probe);
+			}
+
+			@Override
+			public ImageFile passthrough(ImageFile src, ImageProbe probe) throws Exception {
+				return (task.passthrough(src, probe) != null) ? src : null;
+			}
+
+			@Override
+			public ImageFile process(ImageFile src, ImageProbe probe, MemoryBudget.Reservation reservation)
+					throws Exception {
+				try {
+					return encode(src, task.process(src, probe, reservation));
+				} finally {
+					reservation.release();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Task encoding the image rendered by the given task straight to the destination, the processing thread
+	 * writing it through a small buffer. Falls back to an encoding in memory when the destination storage
+	 * only writes whole images.
+	 */
+	private ImageTask<StreamedImage> streamed(final ImageTask<RenderedImage> task, final FileAccess fDest,
+			final String dest) {
+		return new ImageTask<StreamedImage>() {
+			@Override
+			public long getMemoryCost(ImageProbe probe) {
+				return task.getMemoryCost(probe);
+			}
+
+			@Override
+			public StreamedImage passthrough(ImageFile src, ImageProbe probe) throws Exception {
+				if (task.passthrough(src, probe) == null) {
+					return null;
+				}
+				final ImageOutput output = fDest.openOutput(dest);
+				if (output == null) {
+					return new StreamedImage(src, null, 0);
+				}
+				try {
+					write(src.getBuffer(), output.getStream());
+					return committed(output);
+				} catch (IOException | RuntimeException e) {
+					output.abort();
+					throw e;
+				}
+			}
+
+			@Override
+			public StreamedImage process(ImageFile src, ImageProbe probe, MemoryBudget.Reservation reservation)
+					throws Exception {
+				try {
+					final RenderedImage r = task.process(src, probe, reservation);
+					final ImageOutput output = fDest.openOutput(dest);
+					if (output == null) {
+						return new StreamedImage(encode(src, r), null, 0);
+					}
+					try {
+						r.srcImg.flush();
+						final BufferedImage image = rotateImage(r.decoded.getOrientation(), r.resized);
+						final ImageWriter writer = getImageWriter(src);
+						try {
+							encode(writer, image, r.quality, false, output.getStream());
+						} finally {
+							codecs.release(writer);
+						}
+						image.flush();
+						return committed(output);
+					} catch (IOException | RuntimeException e) {
+						output.abort();
+						throw e;
+					}
+				} finally {
+					reservation.release();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Complete the output written by the processing thread, counted as a streamed write.
+	 */
+	private StreamedImage committed(ImageOutput output) throws IOException {
+		final StreamedImage streamed = new StreamedImage(null, output.getId(), output.commit());
+		streamedWrites.incrementAndGet();
+		return streamed;
+	}
+
+	/**
+	 * Encode the rendered image in memory, unless the source is smaller.
+	 */
+	private ImageFile encode(ImageFile src, RenderedImage r) throws IOException {
+		return getSmaller(src, r.decoded, r.resized, compressImage(src, r.srcImg,
+				rotateImage(r.decoded.getOrientation(), r.resized), r.quality));
+	}
+
+	private void write(ByteBuffer data, ImageOutputStream out) throws IOException {
+		if (data.hasArray()) {
+			out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			return;
+		}
+		final byte[] chunk = new byte[Math.min(data.remaining(), 65536)];
+		while (data.hasRemaining()) {
+			final int n = Math.min(chunk.length, data.remaining());
+			data.get(chunk, 0, n);
+			out.write(chunk, 0, n);
+		}
+	}
+
+	/**
+	 * The probe of the thumbnail embedded in the EXIF of a jpeg source, the source probe being disposed, when the
+	 * thumbnail is large enough for the needed size and has the aspect ratio of the source (thumbnails are often
+	 * letterboxed). Otherwise the source probe.
+	 * @param need the size needed with the source aspect ratio (see getNeededSize) or null if unknown
+	 */
+	private ImageProbe getThumbnailOrSource(ImageFile src, ImageProbe probe, int[] need) {
+		if (!exifThumbnails || need == null || probe.isDecoded() || !"jpeg".equals(probe.getFormat())) {
+			return probe;
+		}
+		final ByteBuffer data = src.getBuffer();
+		if (data == null) {
+			return probe;
+		}
+		final ImageProbe thumbnail;
+		try {
+			thumbnail = ImageProbe.probeThumbnail(data, codecs, probe.getOrientation());
+		} catch (IOException e) {
+			logger.debug("Error reading EXIF thumbnail.", e);
+			return probe;
+		}
+		if (thumbnail == null) {
+			return probe;
+		}
+		final long ratioError = Math.abs((long) thumbnail.getWidth() * probe.getHeight() -
+				(long) thumbnail.getHeight() * probe.getWidth());
+		if (thumbnail.getWidth() < need[0] || thumbnail.getHeight() < need[1] ||
+				ratioError > Math.max(probe.getWidth(), probe.getHeight())) {
+			thumbnail.dispose();
+			return probe;
+		}
+		probe.dispose();
+		exifThumbnailReads.incrementAndGet();
+		return thumbnail;
+	}
+
+	private ImageProbe probeImage(ImageFile src, String path) throws ResizerException {
+		ImageProbe probe;
+		try {
+			final ByteBuffer data = src.getBuffer();
+			probe = (data != null) ? ImageProbe.probe(data, codecs) : null;
+		} catch (IOException e) {
+			logger.error("Error reading image.", e);
+			probe = null;
+		}
+		if (probe == null) {
+			logger.error("Unsupported image type for: " + path);
+			throw new ResizerException("Unsupported image type");
+		}
+		return probe;
+	}
+
+	/**
+	 * Get the source from the decoded sources cache, when its version is known and it was decoded recently,
+	 * or read it from its storage.
+	 */
+	private void readSource(final FileAccess fSrc, final String path, final ImageTask<?> task,
+			final Handler<AsyncResult<Source>> handler) {
+		if (!decodedCache.isEnabled()) {
+			checkAndReadSource(fSrc, path, null, task, handler);
+			return;
+		}
+		fSrc.getVersion(path, new Handler<String>() {
+			@Override
+			public void handle(String version) {
+				if (version == null) {
+					checkAndReadSource(fSrc, path, null, task, handler);
+					return;
+				}
+				final String key = path + "|" + version;
+				final DecodedCache.Entry entry = decodedCache.get(key);
+				if (entry != null) {
+					handler.handle(new DefaultAsyncResult<>(new Source(
+							new ImageFile((byte[]) null, entry.getFilename(), entry.getContentType()), entry, key)));
+				} else {
+					checkAndReadSource(fSrc, path, key, task, handler);
+				}
+			}
+		});
+	}
+
+	/**
+	 * When the storage reads parts of the sources, probe the header of the source first, so the unsupported
+	 * sources and the ones too large for the memory budget are rejected without being read entirely.
+	 * Headers too short to be probed (large metadata before the dimensions) are ignored, the source being
+	 * then probed once read.
+	 */
+	private void checkAndReadSource(final FileAccess fSrc, final String path, final String decodedKey,
+			final ImageTask<?> task, final Handler<AsyncResult<Source>> handler) {
+		if (sourceHeaderSize <= 0) {
+			readSource(fSrc, path, decodedKey, handler);
+			return;
+		}
+		fSrc.readHeader(path, sourceHeaderSize, new Handler<ImageFile>() {
+			@Override
+			public void handle(final ImageFile header) {
+				if (header == null) {
+					readSource(fSrc, path, decodedKey, handler);
+					return;
+				}
+				processingPool.execute(context, new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						checkHeader(header, path, task);
+						return null;
+					}
+				}, new Handler<AsyncResult<Void>>() {
+					@Override
+					public void handle(AsyncResult<Void> ar) {
+						if (ar.succeeded()) {
+							readSource(fSrc, path, decodedKey, handler);
+						} else {
+							handler.handle(new DefaultAsyncResult<Source>(ar.cause()));
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private void checkHeader(ImageFile header, String path, ImageTask<?> task) throws ResizerException {
+		final ImageProbe probe;
+		try {
+			probe = ImageProbe.probeHeader(header.getBuffer(), codecs);
+		} catch (IOException | RuntimeException e) {
+			logger.debug("Header too short to probe " + path, e);
+			return;
+		}
+		if (probe == null) {
+			// the readers recognize the formats by their first bytes
+			logger.error("Unsupported image type for: " + path);
+			throw new ResizerException("Unsupported image type");
+		}
+		try {
+			// the orientation isn't known yet : the cost is a lower bound
+			memoryBudget.checkCapacity(task.getMemoryCost(probe));
+		} finally {
+			probe.dispose();
+		}
+	}
+
+	private void readSource(FileAccess fSrc, String path, final String decodedKey,
+			final Handler<AsyncResult<Source>> handler) {
+		fSrc.read(path, new Handler<ImageFile>() {
+			@Override
+			public void handle(ImageFile src) {
+				if (src == null) {
+					handler.handle(new DefaultAsyncResult<Source>(new ResizerException("Input file not found.")));
+				} else {
+					handler.handle(new DefaultAsyncResult<>(new Source(src, null, decodedKey)));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Read the source, then process it (see {@link #processImage(Source, String, ImageTask, Handler)}).
+	 */
+	private <T> void processImage(FileAccess fSrc, final String path, final ImageTask<T> task,
+			final Handler<AsyncResult<T>> handler) {
+		readSource(fSrc, path, task, new Handler<AsyncResult<Source>>() {
+			@Override
+			public void handle(AsyncResult<Source> ar) {
+				if (ar.succeeded()) {
+					processImage(ar.result(), path, task, handler);
+				} else {
+					handler.handle(new DefaultAsyncResult<T>(ar.cause()));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Read the source then process it, the result being first looked up in the derivative cache by the content
+	 * of the source and the normalized parameters of the operation, and cached once encoded.
+	 * Sources found in the decoded sources cache are processed without looking up the derivative cache,
+	 * as their content isn't read.
+	 */
+	private void processImage(FileAccess fSrc, final String path, final String operation,
+			final ImageTask<ImageFile> task, final Handler<AsyncResult<ImageFile>> handler) {
+		readSource(fSrc, path, task, new Handler<AsyncResult<Source>>() {
+			@Override
+			public void handle(AsyncResult<Source> ar) {
+				if (ar.failed()) {
+					handler.handle(new DefaultAsyncResult<ImageFile>(ar.cause()));
+				} else if (!derivativeCache.isEnabled() || ar.result().decoded != null) {
+					processImage(ar.result(), path, task, handler);
+				} else {
+					processCachedImage(ar.result(), path, operation, task, handler);
+				}
+			}
+		});
+	}
+
+	private void processCachedImage(final Source source, final String path, final String operation,
+			final ImageTask<ImageFile> task, final Handler<AsyncResult<ImageFile>> handler) {
+		final ImageFile src = source.file;
+		final AtomicReference<String> key = new AtomicReference<>();
+		processingPool.execute(context, new Callable<ImageFile>() {
+			@Override
+			public ImageFile call() throws Exception {
+				key.set(derivativeCache.getKey(src, getCacheParams(src, operation)));
+				final byte[] cached = derivativeCache.get(key.get());
+				return (cached != null) ? new ImageFile(cached, src.getFilename(), src.getContentType()) : null;
+			}
+		}, new Handler<AsyncResult<ImageFile>>() {
+			@Override
+			public void handle(AsyncResult<ImageFile> ar) {
+				if (ar.failed() || ar.result() != null) {
+					handler.handle(ar);
+					return;
+				}
+				processImage(source, path, new ImageTask<ImageFile>() {
+					@Override
+					public long getMemoryCost(ImageProbe probe) {
+						return task.getMemoryCost(probe);
+					}
+
+					@Override
+					public ImageFile passthrough(ImageFile src, ImageProbe probe) throws Exception {
+						return task.passthrough(src, probe);
+					}
+
+					@Override
+					public ImageFile process(ImageFile src, ImageProbe probe, MemoryBudget.Reservation reservation)
+							throws Exception {
+						final ImageFile result = task.process(src, probe, reservation);
+						derivativeCache.put(key.get(), result.getData());
+						return result;
+					}
+				}, handler);
+			}
+		});
+	}
+
+	/**
+	 * Probe the source on the processing pool, reserve from the memory budget the memory needed by the task,
+	 * then run the task on the processing pool. The handler is called back on the verticle context.
+	 * The task must release the reservation as soon as its rasters aren't used anymore, it is only released
+	 * here if the task fails. Releasing it also releases the cached decoded source the task used.
+	 * When the task writes the source untouched, it is neither given memory nor decoded.
+	 */
+	private <T> void processImage(final Source source, final String path, final ImageTask<T> task,
+			final Handler<AsyncResult<T>> handler) {
+		if (source.decoded != null) {
+			reserveAndProcess(source.file, ImageProbe.decoded(source.decoded), task, handler);
+			return;
+		}
+		processingPool.execute(context, new Callable<Probed<T>>() {
+			@Override
+			public Probed<T> call() throws Exception {
+				final ImageProbe probe = probeImage(source.file, path);
+				final T passthrough;
+				try {
+					passthrough = task.passthrough(source.file, probe);
+				} catch (Exception e) {
+					probe.dispose();
+					throw e;
+				}
+				if (passthrough != null) {
+					probe.dispose();
+					return new Probed<>(null, passthrough);
+				}
+				if (source.decodedKey != null) {
+					probe.setDecoded(decodedCache.reserve(source.decodedKey,
+							BYTES_PER_PIXEL * probe.getWidth() * probe.getHeight(),
+							source.file.getFilename(), source.file.getContentType()));
+				}
+				return new Probed<>(probe, null);
+			}
+		}, new Handler<AsyncResult<Probed<T>>>() {
+			@Override
+			public void handle(AsyncResult<Probed<T>> ar) {
+				if (ar.failed()) {
+					handler.handle(new DefaultAsyncResult<T>(ar.cause()));
+				} else if (ar.result().probe == null) {
+					handler.handle(new DefaultAsyncResult<>(ar.result().passthrough));
+				} else {
+					reserveAndProcess(source.file, ar.result().probe, task, handler);
+				}
+			}
+		});
+	}
+
+	private <T> void reserveAndProcess(final ImageFile src, final ImageProbe probe, final ImageTask<T> task,
+			final Handler<AsyncResult<T>> handler) {
+		memoryBudget.reserve(context, task.getMemoryCost(probe), new Handler<AsyncResult<MemoryBudget.Reservation>>() {
+			@Override
+			public void handle(AsyncResult<MemoryBudget.Reservation> res) {
+				if (res.failed()) {
+					probe.dispose();
+					probe.releaseDecoded();
+					handler.handle(new DefaultAsyncResult<T>(res.cause()));
+					return;
+				}
+				final MemoryBudget.Reservation reservation = res.result();
+				// the cached decoded source is used by the task as long as its own rasters
+				reservation.releaseHandler(new Handler<Void>() {
+					@Override
+					public void handle(Void v) {
+						probe.releaseDecoded();
+					}
+				});
+				processingPool.execute(context, new Callable<T>() {
+					@Override
+					public T call() throws Exception {
+						return task.process(src, probe, reservation);
+					}
+				}, new Handler<AsyncResult<T>>() {
+					@Override
+					public void handle(AsyncResult<T> result) {
+						if (result.failed()) {
+							reservation.release();
+							probe.dispose();
+						}
+						handler.handle(result);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Run the operation or, when an identical operation is already running, wait for its result instead.
+	 */
+	private <T> void coalesce(String key, Handler<Handler<AsyncResult<T>>> operation,
+			Handler<AsyncResult<T>> handler) {
+		if (singleFlight != null) {
+			singleFlight.execute(context, key, operation, handler);
+		} else {
+			operation.handle(handler);
+		}
+	}
+
+	/**
+	 * Run the operation or join an identical running operation, receiving its partial results as they are ready.
+	 */
+	private <T, P> void coalesce(String key, SingleFlight.Operation<T, P> operation, Handler<P> partialHandler,
+			Handler<AsyncResult<T>> handler) {
+		if (singleFlight != null) {
+			singleFlight.execute(context, key, operation, partialHandler, handler);
+		} else {
+			operation.run(partialHandler, handler);
+		}
+	}
+
+	/**
+	 * Normalized parameters of an operation : the action and its parameters.
+	 */
+	private String getOperationKey(String action, Object... params) {
+		final StringBuilder sb = new StringBuilder(action);
+		for (Object param : params) {
+			sb.append('|').append(param);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Whether the destination names its file (file:///thumbnails:abc) instead of getting a generated name.
+	 */
+	private static boolean hasId(String dest) {
+		final String[] p = dest.split("://");
+		if (p.length != 2) {
+			return false;
+		}
+		final String[] path = p[1].split(":");
+		return path.length == 2 && !path[1].trim().isEmpty();
+	}
+
+	/**
+	 * Identity of an operation for coalescing : the source path and the normalized operation.
+	 */
+	private String getFlightKey(String src, String operation) {
+		return operation + "|" + src;
+	}
+
+	/**
+	 * Normalized parameters of an operation for the derivative cache. The output format depends on the source name
+	 * and content type (see getImageWriter), and the output on the resizing settings, which may have changed
+	 * since the results of the disk tier were cached.
+	 */
+	private String getCacheParams(ImageFile src, String operation) {
+		return operation + "|" + getExtension(src.getFilename()).toLowerCase() + "|" + src.getContentType() + "|" +
+				outputSettings;
+	}
+
+	/**
+	 * Bytes needed by the rasters of the source decoded by getSrcImg.
+	 */
+	private long getDecodeCost(ImageProbe probe, int[] need, Rectangle region) {
+		if (probe.isDecoded()) {
+			return 0;
+		}
+		final int width = (region != null) ? region.width : probe.getWidth();
+		final int height = (region != null) ? region.height : probe.getHeight();
+		final int subSampling = getSubSampling(width, height, need);
+		final long decoded = (long) ((width + subSampling - 1) / subSampling) *
+				((height + subSampling - 1) / subSampling);
+		return BYTES_PER_PIXEL * decoded;
+	}
+
+	/**
+	 * Sub-sampling factor used when decoding the source, when it is too large for high quality scaling
+	 * or when it is much larger than what the destinations need.
+	 */
+	private int getSubSampling(int width, int height, int[] need) {
+		if (!optimizedResizing) {
+			return 1;
+		}
+		int subSampling = 1;
+		if ((long) width * height > maxSurfaceForHighQualityScaling) {
+			int xSubSampling = (int) Math.max(1, Math.ceil(width * 1. / srcImageMaxWidthForResize));
+			int ySubSampling = (int) Math.max(1, Math.ceil(height * 1. / srcImageMaxHeightForResize));
+			subSampling = Math.max(xSubSampling, ySubSampling);
+		}
+		if (need != null) {
+			// keep subSamplingHeadroom times the needed size so the scaling still has pixels to filter
+			int targetSubSampling = (int) Math.max(1, Math.floor(Math.min(
+					width / (need[0] * subSamplingHeadroom), height / (need[1] * subSamplingHeadroom))));
+			while (targetSubSampling > 1 && ((width + targetSubSampling - 1) / targetSubSampling <= need[0] ||
+					(height + targetSubSampling - 1) / targetSubSampling <= need[1])) {
+				targetSubSampling--;
+			}
+			subSampling = Math.max(subSampling, targetSubSampling);
+		}
+		return subSampling;
+	}
+
+	/**
+	 * Decode the source image, sub-sampling it when it is too large for high quality scaling
+	 * or when it is much larger than what the destinations need.
+	 * @param probe the probed source image
+	 * @param need the largest size needed by the destinations (see getNeededSize) or null if unknown
+	 * @param region the part of the source to decode or null to decode the whole image
+	 * @return the decoded image
+	 * @throws IOException if an error occurs while decoding the image
+	 */
+	/**
+	 * Decode only a region of the source. The region reads of the sources not already decoded are counted.
+	 */
+	private void setSourceRegion(ImageProbe probe, ImageReadParam param, Rectangle region) {
+		param.setSourceRegion(region);
+		if (!probe.isDecoded()) {
+			regionReads.incrementAndGet();
+		}
+	}
+
+	private BufferedImage getSrcImg(ImageProbe probe, int[] need, Rectangle region) throws IOException {
+		final ImageReadParam param = probe.getDefaultReadParam();
+		if (region != null) {
+			setSourceRegion(probe, param, region);
+		}
+		if (optimizedResizing && !probe.isDecoded()) {
+			final int width = (region != null) ? region.width : probe.getWidth();
+			final int height = (region != null) ? region.height : probe.getHeight();
+			if ((long) width * height > maxSurfaceForHighQualityScaling) {
+				// The image is too large for high quality scaling, we will use sub-sampling
+				logger.warn("Image surface is too large for high quality scaling: " + width + "x" + height);
+			}
+			final int subSampling = getSubSampling(width, height, need);
+			if (subSampling > 1) {
+				param.setSourceSubsampling(subSampling, subSampling, 0, 0);
+			}
+		}
+		return probe.read(param);
+	}
+
+	private void resizeMultiple(final Message<JsonObject> m) {
+		final JsonArray destinations = m.body().getJsonArray("destinations");
+		final float quality = getOrElse(m.body().getFloat("quality"), 0.8f);
+		final boolean cascade = getOrElse(m.body().getBoolean("cascade"), cascadeResizing);
+		if (destinations == null || destinations.size() == 0) {
+			sendError(m, "Invalid outputs files.");
+			return;
+		}
+		final FileAccess fSrc = getFileAccess(m, m.body().getString("src"));
+		if (fSrc == null) {
+			return;
+		}
+		for (Object o : destinations) {
+			if (o instanceof JsonObject && getFileAccess(m, ((JsonObject) o).getString("dest")) == null) {
+				return;
+			}
+		}
+		final DestinationsWriter writer = new DestinationsWriter(destinations, new Handler<JsonObject>() {
+			@Override
+			public void handle(JsonObject results) {
+				if (results.size() > 0) {
+					sendOK(m,  new JsonObject().put("outputs", results));
+				} else {
+					sendError(m, "Unable to resize image.");
+				}
+			}
+		});
+		resizeMultiple(fSrc, m.body().getString("src"), destinations, quality, cascade, writer,
+				new Handler<AsyncResult<Void>>() {
+			@Override
+			public void handle(AsyncResult<Void> ar) {
+				if (ar.failed()) {
+					sendProcessingError(m, ar.cause());
+				} else {
+					writer.done();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Decode the source once and encode it at the size of each destination. Identical operations are coalesced,
+	 * the computation publishing each encoded destination as soon as it is ready, each caller writing them
+	 * to its own files.
+	 * @param destinationHandler called with each encoded destination, the destinations which failed are skipped
+	 * @param handler called once every destination is encoded
+	 */
+	private void resizeMultiple(final FileAccess fSrc, final String path, final JsonArray destinations,
+			final float quality, final boolean cascade, Handler<DestinationImage> destinationHandler,
+			Handler<AsyncResult<Void>> handler) {
+		final StringBuilder sizes = new StringBuilder();
+		for (Object o : destinations) {
+			if (o instanceof JsonObject) {
+				final JsonObject output = (JsonObject) o;
+				sizes.append(output.getInteger("width")).append('x').append(output.getInteger("height"))
+						.append(output.getBoolean("stretch", false) ? "s" : "");
+			}
+			sizes.append(',');
+		}
+		final String operation = getOperationKey("resizeMultiple", quality, cascade, sizes);
+		coalesce(getFlightKey(path, operation), new SingleFlight.Operation<Void, DestinationImage>() {
+			@Override
+			public void run(final Handler<DestinationImage> destinationHandler, final Handler<AsyncResult<Void>> handler) {
+				// the reservation covers the decoded source and is released once every destination is encoded
+				final AtomicReference<MemoryBudget.Reservation> reservation = new AtomicReference<>();
+				final AtomicReference<ImageFile> source = new AtomicReference<>();
+				processImage(fSrc, path, new ImageTask<DecodedImage>() {
+					@Override
+					public long getMemoryCost(ImageProbe probe) {
+						long cost = getDecodeCost(probe,
+								getNeededSize(destinations, probe.getWidth(), probe.getHeight()), null);
+						for (Object o : destinations) {
+							if (o instanceof JsonObject) {
+								final JsonObject output = (JsonObject) o;
+								final int[] need = getNeededSize(output.getInteger("width"), output.getInteger("height"),
+										output.getBoolean("stretch", false), probe.getWidth(), probe.getHeight());
+								if (need != null) {
+									cost += BYTES_PER_PIXEL * need[0] * need[1];
+								}
+							}
+						}
+						return cost;
+					}
+
+					@Override
+					public DecodedImage passthrough(ImageFile src, ImageProbe probe) {
+						return null;
+					}
+
+					@Override
+					public DecodedImage process(ImageFile src, ImageProbe probe, MemoryBudget.Reservation r)
+							throws Exception {
+						reservation.set(r);
+						source.set(src);
+						final int[] need = getNeededSize(destinations, probe.getWidth(), probe.getHeight());
+						final ImageProbe p = getThumbnailOrSource(src, probe, need);
+						return new DecodedImage(getSrcImg(p, need, null), probe.getWidth(), probe.getHeight(),
+								probe.getOrientation(), probe.getFormat());
+					}
+				}, new Handler<AsyncResult<DecodedImage>>() {
+					@Override
+					public void handle(AsyncResult<DecodedImage> ar) {
+						if (ar.failed()) {
+							handler.handle(new DefaultAsyncResult<Void>(ar.cause()));
+						} else if (cascade) {
+							cascadeDestinations(source.get(), ar.result(), reservation.get(), destinationHandler,
+									handler);
+						} else {
+							final BufferedImage[] sources = new BufferedImage[destinations.size()];
+							Arrays.fill(sources, ar.result().getImage());
+							resizeDestinations(source.get(), ar.result(), sources, reservation.get(),
+									destinationHandler, handler);
+						}
+					}
+				});
+			}
+
+			private void cascadeDestinations(final ImageFile src, final DecodedImage decoded,
+					final MemoryBudget.Reservation reservation, final Handler<DestinationImage> destinationHandler,
+					final Handler<AsyncResult<Void>> handler) {
+				processingPool.execute(context, new Callable<BufferedImage[]>() {
+					@Override
+					public BufferedImage[] call() throws Exception {
+						return getCascadeSources(decoded.getImage(), destinations);
+					}
+				}, new Handler<AsyncResult<BufferedImage[]>>() {
+					@Override
+					public void handle(AsyncResult<BufferedImage[]> ar) {
+						if (ar.succeeded()) {
+							resizeDestinations(src, decoded, ar.result(), reservation, destinationHandler, handler);
+						} else {
+							reservation.release();
+							handler.handle(new DefaultAsyncResult<Void>(ar.cause()));
+						}
+					}
+				});
+			}
+
+			private void resizeDestinations(final ImageFile src, final DecodedImage decoded,
+					final BufferedImage[] sources, final MemoryBudget.Reservation reservation,
+					final Handler<DestinationImage> destinationHandler, final Handler<AsyncResult<Void>> handler) {
+				final AtomicInteger processing = new AtomicInteger(destinations.size());
+				for (int i = 0; i < destinations.size(); i++) {
+					final Object o = destinations.getValue(i);
+					final BufferedImage source = sources[i];
+					if (!(o instanceof JsonObject)) {
+						checkProcessed(processing, reservation, handler);
+						continue;
+					}
+					final JsonObject output = (JsonObject) o;
+					final Integer width = output.getInteger("width");
+					final Integer height = output.getInteger("height");
+					final boolean stretch = output.getBoolean("stretch", false);
+					if (width == null && height == null) {
+						checkProcessed(processing, reservation, handler);
+						continue;
+					}
+					final int index = i;
+					// each destination only reads the shared source so they are scaled and encoded in parallel
+					processingPool.execute(context, new Callable<ImageFile>() {
+						@Override
+						public ImageFile call() throws Exception {
+							if (isUnchangedByResize(width, height, stretch, decoded.getWidth(), decoded.getHeight()) &&
+									isPassthrough(src, decoded.getFormat(), decoded.getOrientation(), quality)) {
+								return src;
+							}
+							BufferedImage resized = doResize(width, height, stretch, source, decoded);
+							return getSmaller(src, decoded, resized,
+									compressImage(src, decoded.getImage(), resized, quality));
+						}
+					}, new Handler<AsyncResult<ImageFile>>() {
+						@Override
+						public void handle(AsyncResult<ImageFile> ar) {
+							if (ar.succeeded()) {
+								// written as soon as encoded, while the other destinations are still processed
+								destinationHandler.handle(new DestinationImage(index, ar.result()));
+							} else {
+								logger.error("Error processing image.", ar.cause());
+							}
+							checkProcessed(processing, reservation, handler);
+						}
+					});
+				}
+			}
+
+			private void checkProcessed(AtomicInteger processing, MemoryBudget.Reservation reservation,
+					Handler<AsyncResult<Void>> handler) {
+				if (processing.decrementAndGet() == 0) {
+					reservation.release();
+					handler.handle(new DefaultAsyncResult<>((Void) null));
+				}
+			}
+		}, destinationHandler, handler);
+	}
+
+	/**
+	 * Writes the encoded destinations of resizeMultiple to their files as soon as each of them is ready,
+	 * then gives the written files by size ("WxH") once every destination is encoded and written.
+	 */
+	private final class DestinationsWriter implements Handler<DestinationImage> {
+
+		private final JsonArray destinations;
+		private final Handler<JsonObject> handler;
+		private final JsonObject results = new JsonObject();
+		private int writing;
+		private boolean encoded;
+
+		private DestinationsWriter(JsonArray destinations, Handler<JsonObject> handler) {
+			this.destinations = destinations;
+			this.handler = handler;
+		}
+
+		@Override
+		public void handle(DestinationImage image) {
+			final Object o = destinations.getValue(image.index);
+			final FileAccess fDest = (o instanceof JsonObject) ?
+					getFileAccess(((JsonObject) o).getString("dest")) : null;
+			if (fDest == null) {
+				image.release();
+				return;
+			}
+			final JsonObject output = (JsonObject) o;
+			writing++;
+			fDest.write(output.getString("dest"), image.file, new Handler<String>() {
+				@Override
+				public void handle(String event) {
+					// each caller holds its own reference on the coalesced destinations
+					image.release();
+					if (event != null && !event.trim().isEmpty()) {
+						results.put(output.getInteger("width", 0) + "x" + output.getInteger("height", 0), event);
+					}
+					writing--;
+					checkDone();
+				}
+			});
+		}
+
+		/**
+		 * Every destination is encoded.
+		 */
+		private void done() {
+			encoded = true;
+			checkDone();
+		}
+
+		private void checkDone() {
+			if (encoded && writing == 0) {
+				handler.handle(results);
+			}
+		}
+
+	}
+
+	private void resizeBatch(final Message<JsonObject> m) {
+		final JsonArray sources = m.body().getJsonArray("sources");
+		final JsonArray destinations = m.body().getJsonArray("destinations");
+		if (sources == null || sources.size() == 0) {
+			sendError(m, "Invalid sources.");
+			return;
+		}
+		if (destinations == null || destinations.size() == 0) {
+			sendError(m, "Invalid outputs files.");
+			return;
+		}
+		for (Object o : sources) {
+			if (!(o instanceof String)) {
+				sendError(m, "Invalid source : " + o);
+				return;
+			}
+			if (getFileAccess(m, (String) o) == null) {
+				return;
+			}
+		}
+		for (Object o : destinations) {
+			if (!(o instanceof JsonObject)) {
+				sendError(m, "Invalid outputs files.");
+				return;
+			}
+			final String dest = ((JsonObject) o).getString("dest");
+			if (getFileAccess(m, dest) == null) {
+				return;
+			}
+			if (hasId(dest)) {
+				// every source would be written to the same file
+				sendError(m, "Invalid outputs files, batch destinations can't name a file : " + dest);
+				return;
+			}
+		}
+		new Batch(m, sources, destinations).next();
+	}
+
+	/**
+	 * Sources of a resizeBatch message. Up to prefetch sources are read and processed at once, so reading the next
+	 * sources overlaps the processing of the previous ones.
+	 */
+	private final class Batch {
+
+		private final Message<JsonObject> m;
+		private final JsonArray sources;
+		private final JsonArray destinations;
+		private final float quality;
+		private final boolean cascade;
+		private final int prefetch;
+		private final String progressAddress;
+		private final JsonObject[] results;
+		private int started;
+		private int running;
+		private int done;
+		private int failed;
+
+		private Batch(Message<JsonObject> m, JsonArray sources, JsonArray destinations) {
+			this.m = m;
+			this.sources = sources;
+			this.destinations = destinations;
+			this.quality = getOrElse(m.body().getFloat("quality"), 0.8f);
+			this.cascade = getOrElse(m.body().getBoolean("cascade"), cascadeResizing);
+			this.prefetch = Math.max(1, getOrElse(m.body().getInteger("prefetch"), batchPrefetch));
+			this.progressAddress = m.body().getString("progress-address");
+			this.results = new JsonObject[sources.size()];
+		}
+
+		private void next() {
+			while (running < prefetch && started < sources.size()) {
+				final int index = started++;
+				running++;
+				process(index, sources.getString(index));
+			}
+		}
+
+		private void process(final int index, final String src) {
+			final DestinationsWriter writer = new DestinationsWriter(destinations, new Handler<JsonObject>() {
+				@Override
+				public void handle(JsonObject outputs) {
+					if (outputs.size() > 0) {
+						done(index, new JsonObject().put("src", src).put("status", "ok").put("outputs", outputs));
+					} else {
+						done(index, new JsonObject().put("src", src).put("status", "error")
+								.put("message", "Unable to resize image."));
+					}
+				}
+			});
+			resizeMultiple(getFileAccess(src), src, destinations, quality, cascade, writer,
+					new Handler<AsyncResult<Void>>() {
+				@Override
+				public void handle(AsyncResult<Void> ar) {
+					if (ar.failed()) {
+						done(index, new JsonObject().put("src", src).put("status", "error")
+								.put("message", getErrorMessage(ar.cause())));
+					} else {
+						writer.done();
+					}
+				}
+			});
+		}
+
+		private void done(int index, JsonObject result) {
+			results[index] = result;
+			running--;
+			done++;
+			if ("error".equals(result.getString("status"))) {
+				failed++;
+			}
+			if (progressAddress != null) {
+				eb.send(progressAddress, result.copy().put("index", index));
+			}
+			if (done < sources.size()) {
+				next();
+				return;
+			}
+			final JsonObject reply = new JsonObject()
+					.put("processed", done - failed)
+					.put("failed", failed);
+			if (progressAddress == null) {
+				reply.put("results", new JsonArray(Arrays.asList((Object[]) results)));
+			}
+			sendOK(m, reply);
+		}
+
+	}
+
+	private void pipeline(final Message<JsonObject> m) {
+		final JsonArray steps = m.body().getJsonArray("steps");
+		final float quality = getOrElse(m.body().getFloat("quality"), 0.8f);
+		if (steps == null || steps.size() == 0) {
+			sendError(m, "Invalid steps.");
+			return;
+		}
+		final FileAccess fSrc = getFileAccess(m, m.body().getString("src"));
+		if (fSrc == null) {
+			return;
+		}
+		// steps without their destinations, for coalescing
+		final JsonArray operations = new JsonArray();
+		boolean hasOutput = false;
+		for (Object o : steps) {
+			if (!(o instanceof JsonObject) || !isValidStep((JsonObject) o)) {
+				sendError(m, "Invalid step : " + o);
+				return;
+			}
+			final JsonObject step = ((JsonObject) o).copy();
+			if ("compress".equals(step.getString("action"))) {
+				if (getFileAccess(m, step.getString("dest")) == null) {
+					return;
+				}
+				step.remove("dest");
+				hasOutput = true;
+			}
+			operations.add(step);
+		}
+		if (!hasOutput) {
+			sendError(m, "Invalid steps : no compress step.");
+			return;
+		}
+		final String operation = getOperationKey("pipeline", quality, operations.encode());
+		coalesce(getFlightKey(m.body().getString("src"), operation), new Handler<Handler<AsyncResult<PipelineOutputs>>>() {
+			@Override
+			public void handle(Handler<AsyncResult<PipelineOutputs>> handler) {
+				processImage(fSrc, m.body().getString("src"), new ImageTask<PipelineOutputs>() {
+					@Override
+					public long getMemoryCost(ImageProbe probe) {
+						return getPipelineCost(probe, steps);
+					}
+
+					@Override
+					public PipelineOutputs passthrough(ImageFile src, ImageProbe probe) {
+						return null;
+					}
+
+					@Override
+					public PipelineOutputs process(ImageFile src, ImageProbe probe,
+							MemoryBudget.Reservation reservation) throws Exception {
+						try {
+							return new PipelineOutputs(runPipeline(src, probe, steps, quality));
+						} finally {
+							reservation.release();
+						}
+					}
+				}, handler);
+			}
+		}, new Handler<AsyncResult<PipelineOutputs>>() {
+			@Override
+			public void handle(AsyncResult<PipelineOutputs> ar) {
+				if (ar.failed()) {
+					sendProcessingError(m, ar.cause());
+					return;
+				}
+				final ImageFile[] outputs = ar.result().files;
+				final JsonArray results = new JsonArray();
+				final AtomicInteger count = new AtomicInteger(outputs.length);
+				final AtomicInteger written = new AtomicInteger();
+				int i = 0;
+				for (Object o : steps) {
+					final JsonObject step = (JsonObject) o;
+					if (!"compress".equals(step.getString("action"))) {
+						continue;
+					}
+					final int index = i++;
+					final ImageFile output = outputs[index];
+					final int size = output.getSize();
+					results.addNull();
+					getFileAccess(m, step.getString("dest")).write(step.getString("dest"), output,
+							new Handler<String>() {
+						@Override
+						public void handle(String result) {
+							output.release();
+							if (result != null && !result.trim().isEmpty()) {
+								results.set(index, new JsonObject().put("output", result).put("size", size));
+								written.incrementAndGet();
+							}
+							if (count.decrementAndGet() == 0) {
+								if (written.get() > 0) {
+									sendOK(m, new JsonObject().put("outputs", results));
+								} else {
+									sendError(m, "Error writing file.");
+								}
+							}
+						}
+					});
+				}
+			}
+		});
+	}
+
+	private boolean isValidStep(JsonObject step) {
+		switch (step.getString("action", "")) {
+			case "crop" :
+				return step.getInteger("width") != null && step.getInteger("height") != null;
+			case "resize" :
+				return step.getInteger("width") != null || step.getInteger("height") != null;
+			case "rotate" :
+				return getRotation(step.getInteger("angle")) != null;
+			case "compress" :
+				final Float quality = step.getFloat("quality");
+				return quality == null || (quality > 0f && quality <= 1f);
+			default :
+				return false;
+		}
+	}
+
+	/**
+	 * Run the pipeline steps on the image decoded once, only the compress steps encoding it.
+	 * The EXIF orientation is applied after decoding so the steps coordinates are those of the displayed image.
+	 * @return the encoded outputs, in the order of the compress steps
+	 */
+	private ImageFile[] runPipeline(ImageFile src, ImageProbe probe, JsonArray steps, float quality)
+			throws IOException, ResizerException {
+		final ImageReadParam param = probe.getDefaultReadParam();
+		int first = 0;
+		if ("crop".equals(steps.getJsonObject(0).getString("action")) &&
+				probe.getOrientation() == ImageProbe.ORIENTATION_NORMAL) {
+			// only the cropped region is decoded
+			setSourceRegion(probe, param, getCropRegion(steps.getJsonObject(0), probe.getWidth(), probe.getHeight()));
+			first = 1;
+		}
+		// the crop bounds are checked by getCropRegion, other errors aren't crop errors
+		BufferedImage image = rotateImage(probe.getOrientation(), probe.read(param));
+		final List<ImageFile> outputs = new ArrayList<>();
+		for (int i = first; i < steps.size(); i++) {
+			final JsonObject step = steps.getJsonObject(i);
+			switch (step.getString("action")) {
+				case "crop" :
+					final Rectangle region = getCropRegion(step, image.getWidth(), image.getHeight());
+					image = image.getSubimage(region.x, region.y, region.width, region.height);
+					break;
+				case "resize" :
+					image = doResize(step.getInteger("width"), step.getInteger("height"),
+							step.getBoolean("stretch", false), image);
+					break;
+				case "rotate" :
+					image = rotate(image, getRotation(step.getInteger("angle")));
+					break;
+				case "compress" :
+					outputs.add(compressImage(src, image, image, step.getFloat("quality", quality)));
+					break;
+			}
+		}
+		return outputs.toArray(new ImageFile[outputs.size()]);
+	}
+
+	/**
+	 * Bytes needed by the decoded source and the images produced by the pipeline steps.
+	 */
+	private long getPipelineCost(ImageProbe probe, JsonArray steps) {
+		long width = probe.getWidth();
+		long height = probe.getHeight();
+		final JsonObject first = steps.getJsonObject(0);
+		if ("crop".equals(first.getString("action")) && probe.getOrientation() == ImageProbe.ORIENTATION_NORMAL) {
+			width = first.getInteger("width");
+			height = first.getInteger("height");
+		}
+		long cost = probe.isDecoded() ? 0 : BYTES_PER_PIXEL * width * height;
+		if (probe.getOrientation() != ImageProbe.ORIENTATION_NORMAL) {
+			cost += BYTES_PER_PIXEL * width * height;
+		}
+		for (Object o : steps) {
+			final JsonObject step = (JsonObject) o;
+			switch (step.getString("action")) {
+				case "crop" :
+					width = Math.min(width, step.getInteger("width"));
+					height = Math.min(height, step.getInteger("height"));
+					break;
+				case "resize" :
+					final int[] need = getNeededSize(step.getInteger("width"), step.getInteger("height"),
+							step.getBoolean("stretch", false), width, height);
+					if (need != null) {
+						width = need[0];
+						height = need[1];
+						cost += BYTES_PER_PIXEL * width * height;
+					}
+					break;
+				case "rotate" :
+					cost += BYTES_PER_PIXEL * width * height;
+					break;
+			}
+		}
+		return cost;
+	}
+
+	private Rectangle getCropRegion(JsonObject step, int width, int height) throws ResizerException {
+		final Rectangle region = new Rectangle(step.getInteger("x", 0), step.getInteger("y", 0),
+				step.getInteger("width"), step.getInteger("height"));
+		if (region.x < 0 || region.y < 0 || region.width <= 0 || region.height <= 0 ||
+				width < region.x + region.width || height < region.y + region.height) {
+			throw new ResizerException("Source image too small for crop.");
+		}
+		return region;
+	}
+
+	private Rotation getRotation(Integer angle) {
+		if (angle == null) {
+			return null;
+		}
+		switch (angle) {
+			case 90 :
+				return Rotation.CW_90;
+			case 180 :
+				return Rotation.CW_180;
+			case 270 :
+				return Rotation.CW_270;
+			default :
+				return null;
+		}
+	}
+
+	/**
+	 * Choose for each destination the image it will be scaled from. Destinations are visited from the largest
+	 * to the smallest and each one is derived from the smallest intermediate of the chain that is still at least
+	 * cascadeFactor times larger than what it needs, so the resampling never gets worse than scaling from the
+	 * source. Intermediates keep the source aspect ratio so doResize stretch and crop semantics still apply.
+	 * @param srcImg the decoded source image
+	 * @param destinations the resizeMultiple destinations
+	 * @return the image to resize from for each destination, by index
+	 */
+	private BufferedImage[] getCascadeSources(BufferedImage srcImg, JsonArray destinations) {
+		final BufferedImage[] sources = new BufferedImage[destinations.size()];
+		final int[][] needs = new int[destinations.size()][];
+		final List<Integer> order = new ArrayList<>();
+		for (int i = 0; i < destinations.size(); i++) {
+			sources[i] = srcImg;
+			final Object o = destinations.getValue(i);
+			if (o instanceof JsonObject) {
+				final JsonObject output = (JsonObject) o;
+				needs[i] = getNeededSize(output.getInteger("width"), output.getInteger("height"),
+						output.getBoolean("stretch", false), srcImg.getWidth(), srcImg.getHeight());
+				if (needs[i] != null) {
+					order.add(i);
+				}
+			}
+		}
+		Collections.sort(order, new Comparator<Integer>() {
 			@Override
-			public void handle(ImageFile src) {
-				if (src == null) {
-					sendError(m, "Input file not found.");
-					return;
+			public int compare(Integer a, Integer b) {
+				return Long.compare((long) needs[b][0] * needs[b][1], (long) needs[a][0] * needs[a][1]);
+			}
+		});
+		final List<BufferedImage> chain = new ArrayList<>();
+		chain.add(srcImg);
+		for (int k = 0; k < order.size(); k++) {
+			final int[] need = needs[order.get(k)];
+			final int minWidth = (int) Math.ceil(need[0] * cascadeFactor);
+			final int minHeight = (int) Math.ceil(need[1] * cascadeFactor);
+			BufferedImage source = srcImg;
+			for (BufferedImage candidate : chain) {
+				if (candidate.getWidth() >= minWidth && candidate.getHeight() >= minHeight &&
+						candidate.getWidth() > need[0] && candidate.getHeight() > need[1] &&
+						(long) candidate.getWidth() * candidate.getHeight() < (long) source.getWidth() * source.getHeight()) {
+					source = candidate;
 				}
-				try {
-					final Optional<BufferedImage> srcImg = getSrcImg(src.getInputStream());
-					if(srcImg.isPresent()) {
-						final BufferedImage img = srcImg.get();
-						BufferedImage resized = doResize(width, height, stretch, img);
-						persistImage(src, img, resized, fDest, quality, m);
-					} else {
-						logger.error("Unsupported image type for: " + m.body().getString("src"));
-						sendError(m, "Unsupported image type");
-					}
-				} catch (IOException e) {
-					logger.error("Error processing image.", e);
-					sendError(m, "Error processing image.", e);
+			}
+			if (k < order.size() - 1) {
+				final double scale = Math.max(minWidth / (double) srcImg.getWidth(),
+						minHeight / (double) srcImg.getHeight());
+				final int width = (int) Math.ceil(srcImg.getWidth() * scale);
+				final int height = (int) Math.ceil(srcImg.getHeight() * scale);
+				if (width > need[0] && height > need[1] && width < source.getWidth() && height < source.getHeight()) {
+					source = Scalr.resize(source, getResizingMethod(source), Mode.FIT_EXACT, width, height);
+					chain.add(source);
 				}
 			}
-		});
+			sources[order.get(k)] = source;
+		}
+		return sources;
 	}
-	private Optional<BufferedImage> getSrcImg(InputStream inputStream) {
-		BufferedImage image;
-		try {
-			if(optimizedResizing) {
-				final byte[] imageBytes = toByteArray(inputStream);
-				final int[] dimensions = getImageDimensions(new ByteArrayInputStream(imageBytes));
-				final int width = dimensions[0];
-				final int height = dimensions[1];
-				if (width * height > maxSurfaceForHighQualityScaling) {
-					// The image is too large for high quality scaling, we will use sub-sampling
-					logger.warn("Image surface is too large for high quality scaling: " + width + "x" + height);
-					final ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(imageBytes));
-					Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
-					ImageReader reader = readers.next();
-					reader.setInput(iis, true);
-					ImageReadParam param = reader.getDefaultReadParam();
-
-					int xSubSampling = (int) Math.max(1, Math.ceil(width * 1. / srcImageMaxWidthForResize));
-					int ySubSampling = (int) Math.max(1, Math.ceil(height * 1. / srcImageMaxHeightForResize));
-					int subSampling = Math.max(xSubSampling, ySubSampling);
-					param.setSourceSubsampling(subSampling, subSampling, 0, 0);
-					image = reader.read(0, param);
-				} else {
-					image = ImageIO.read(new ByteArrayInputStream(imageBytes));
-				}
-			} else {
-				image = ImageIO.read(inputStream);
+
+	/**
+	 * Largest size needed by the resizeMultiple destinations.
+	 * @return the width and height needed or null if one of the destinations is not resized
+	 */
+	private int[] getNeededSize(JsonArray destinations, int srcWidth, int srcHeight) {
+		final int[] need = new int[]{0, 0};
+		for (Object o : destinations) {
+			if (!(o instanceof JsonObject)) {
+				continue;
 			}
-		} catch (IOException e) {
-			logger.error("Error reading image.", e);
-			image = null;
+			final JsonObject output = (JsonObject) o;
+			if (output.getInteger("width") == null && output.getInteger("height") == null) {
+				continue;
+			}
+			final int[] n = getNeededSize(output.getInteger("width"), output.getInteger("height"),
+					output.getBoolean("stretch", false), srcWidth, srcHeight);
+			if (n == null) {
+				return null;
+			}
+			need[0] = Math.max(need[0], n[0]);
+			need[1] = Math.max(need[1], n[1]);
 		}
-		return Optional.ofNullable(image);
+		return (need[0] > 0 && need[1] > 0) ? need : null;
 	}
 
 	/**
-	 * Get the resolutions of an image without loading the whole image into memory.
-	 * @param input the input stream of the image
-	 * @return an array containing the width and height of the image
-	 * @throws IOException if an error occurs while reading the image
+	 * Size, with the source aspect ratio, from which doResize can produce the requested destination.
+	 * @return the width and height needed or null if the destination is not resized
 	 */
-	private static int[] getImageDimensions(InputStream input) throws IOException {
-		try (ImageInputStream iis = ImageIO.createImageInputStream(input)) {
-			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
-			if (!readers.hasNext()) throw new IOException("No image reader found");
-			ImageReader reader = readers.next();
-			reader.setInput(iis, true, true);
-			int width = reader.getWidth(0);
-			int height = reader.getHeight(0);
-			reader.dispose();
+	private int[] getNeededSize(Integer width, Integer height, boolean stretch, double srcWidth, double srcHeight) {
+		if ((width != null && width <= 0) || (height != null && height <= 0)) {
+			return null;
+		} else if (width != null && height != null && !stretch) {
+			final double scale = Math.max(width / srcWidth, height / srcHeight);
+			return new int[]{(int) Math.ceil(srcWidth * scale), (int) Math.ceil(srcHeight * scale)};
+		} else if (width != null && height != null) {
 			return new int[]{width, height};
+		} else if (height != null) {
+			return new int[]{(int) Math.ceil(srcWidth * height / srcHeight), height};
+		} else if (width != null) {
+			return new int[]{width, (int) Math.ceil(srcHeight * width / srcWidth)};
 		}
+		return null;
 	}
 
-	private void resizeMultiple(final Message<JsonObject> m) {
-		final JsonArray destinations = m.body().getJsonArray("destinations");
-		final float quality = getOrElse(m.body().getFloat("quality"), 0.8f);
-		if (destinations == null || destinations.size() == 0) {
-			sendError(m, "Invalid outputs files.");
-			return;
-		}
-		final FileAccess fSrc = getFileAccess(m, m.body().getString("src"));
-		if (fSrc == null) {
-			return;
+	/**
+	 * Resize an image derived from the source (sub-sampled or cascaded). As the dimensions of the derived image
+	 * are rounded, a missing width or height is computed from the original size of the source.
+	 */
+	private BufferedImage doResize(Integer width, Integer height, boolean stretch, BufferedImage image,
+			DecodedImage src) {
+		if ((width == null) != (height == null) &&
+				(image.getWidth() != src.getWidth() || image.getHeight() != src.getHeight())) {
+			final float ratio = src.getHeight() / (float) src.getWidth();
+			return doResize(width != null ? width : Math.round(height / ratio),
+					height != null ? height : Math.round(width * ratio), true, image);
 		}
-		fSrc.read(m.body().getString("src"), new Handler<ImageFile>() {
-			@Override
-			public void handle(ImageFile src) {
-				if (src == null) {
-					sendError(m, "Input file not found.");
-					return;
-				}
-				final AtomicInteger count = new AtomicInteger(destinations.size());
-				final JsonObject results = new JsonObject();
-				final Optional<BufferedImage> srcImg = getSrcImg(src.getInputStream());
-				if(!srcImg.isPresent())
-				{
-					logger.error("Unsupported image type for: " + m.body().getString("src"));
-					sendError(m, "Unsupported image type");
-					return;
-				}
-				for (Object o: destinations) {
-					if (!(o instanceof JsonObject)) {
-						checkReply(m, count, results);
-						continue;
-					}
-					final JsonObject output = (JsonObject) o;
-					final Integer width = output.getInteger("width");
-					final Integer height = output.getInteger("height");
-					final boolean stretch = output.getBoolean("stretch", false);
-					final FileAccess fDest = getFileAccess(m, output.getString("dest"));
-					if (fDest == null || (width == null && height == null)) {
-						checkReply(m, count, results);
-						continue;
-					}
-					try {
-						final BufferedImage image = srcImg.get();
-						BufferedImage resized = doResize(width, height, stretch, image);
-						persistImage(src, image, resized, fDest, output.getString("dest"), quality,
-								new Handler<String>() {
-							@Override
-							public void handle(String event) {
-								if (event != null && !event.trim().isEmpty()) {
-									results.put(output.getInteger("width", 0) + "x" +
-											output.getInteger("height", 0), event);
-								}
-								checkReply(m, count, results);
-							}
-						});
-					} catch (IOException e) {
-						logger.error("Error processing image.", e);
-						checkReply(m, count, results);
-					}
-				}
-			}
-
-			private void checkReply(Message<JsonObject> m, AtomicInteger count, JsonObject results) {
-				final int c = count.decrementAndGet();
-				if (c == 0 && results != null && results.size() > 0) {
-					sendOK(m,  new JsonObject().put("outputs", results));
-				} else if (c == 0) {
-					sendError(m, "Unable to resize image.");
-				}
-			}
-		});
+		return doResize(width, height, stretch, image);
 	}
 
 	private BufferedImage doResize(Integer width, Integer height, boolean stretch,
@@ -378,19 +1848,11 @@ public class ImageResizer extends BusModBase implements Handler<Message<JsonObje
 		final Method scalarMode = getResizingMethod(srcImg);
 		// Computations
 		BufferedImage resized = null;
-		if (width != null && height != null && !stretch &&
-				(allowImageEnlargement || (width < srcImg.getWidth() && height < srcImg.getHeight()))) {
-			if (srcImg.getHeight()/(float)height < srcImg.getWidth()/(float)width) {
-				resized = Scalr.resize(srcImg, scalarMode,
-						Mode.FIT_TO_HEIGHT, width, height);
-			} else {
-				resized = Scalr.resize(srcImg, scalarMode,
-						Mode.FIT_TO_WIDTH, width, height);
-			}
-			resized.flush();
-			int x = (resized.getWidth() - width) / 2;
-			int y = (resized.getHeight() - height) / 2;
-			resized = Scalr.crop(resized, x, y, width, height);
+		if (isCoverResize(width, height, stretch, srcImg.getWidth(), srcImg.getHeight())) {
+			// scale only the centered part of the source having the destination ratio, straight to the destination size
+			final Rectangle region = getCoverRegion(srcImg.getWidth(), srcImg.getHeight(), width, height);
+			resized = Scalr.resize(srcImg.getSubimage(region.x, region.y, region.width, region.height),
+					scalarMode, Mode.FIT_EXACT, width, height);
 		} else if (width != null && height != null &&
 				(allowImageEnlargement || (width < srcImg.getWidth() && height < srcImg.getHeight()))) {
 			resized = Scalr.resize(srcImg, scalarMode,
@@ -422,27 +1884,121 @@ public class ImageResizer extends BusModBase implements Handler<Message<JsonObje
 		return resized;
 	}
 
-	private void persistImage(ImageFile src, BufferedImage srcImg, BufferedImage resized,
-							  FileAccess fDest, final Message<JsonObject> m) throws IOException {
-		persistImage(src, srcImg, resized, fDest, 0.8f, m);
+	/**
+	 * Whether the source of an operation keeping its whole image can be written untouched instead of being
+	 * decoded and encoded again, from its header only : no orientation fix, output in the source format, no
+	 * metadata, and a quality which wouldn't reduce its size (lossless format, maximum quality, or a source
+	 * already encoded with a lower quality).
+	 */
+	private boolean isPassthrough(ImageFile src, String format, int orientation, float quality) {
+		return passthrough && src.getSize() >= 0 && orientation == ImageProbe.ORIENTATION_NORMAL &&
+				codecs.isSameWriter(format, getOutputFormat(src)) &&
+				(quality >= 1f || !LOSSY_FORMATS.contains(format) || isEncodedBelow(src, format, quality)) &&
+				!ImageProbe.hasMetadata(src.getBuffer(), format);
+	}
+
+	/**
+	 * Whether doResize gives back the source image itself, neither scaled nor cropped.
+	 */
+	private boolean isUnchangedByResize(Integer width, Integer height, boolean stretch, int srcWidth,
+			int srcHeight) {
+		if ((width != null && width <= 0) || (height != null && height <= 0)) {
+			return true;
+		}
+		if (isCoverResize(width, height, stretch, srcWidth, srcHeight) ||
+				(width != null && height != null && (allowImageEnlargement || (width < srcWidth && height < srcHeight))) ||
+				(height != null && (allowImageEnlargement || height < srcHeight)) ||
+				(width != null && (allowImageEnlargement || width < srcWidth))) {
+			return false;
+		}
+		if (width != null && height != null) {
+			// cropped to the requested aspect ratio
+			final float ratio = width / (float) height;
+			final float srcRatio = srcWidth / (float) srcHeight;
+			return !(ratio > srcRatio) && !(ratio < srcRatio);
+		}
+		return true;
+	}
+
+	/**
+	 * The source if the image is unchanged and the source isn't larger than its new encoding.
+	 */
+	private ImageFile getSmaller(ImageFile src, DecodedImage decoded, BufferedImage resized, ImageFile output) {
+		if (canPassThrough(src, decoded, resized) && src.getSize() <= output.getSize()) {
+			output.release();
+			return src;
+		}
+		return output;
+	}
+
+	/**
+	 * Whether passing the source through is enabled, the output is the whole source and the source holds no
+	 * metadata, which encoding the image again strips.
+	 */
+	private boolean canPassThrough(ImageFile src, DecodedImage decoded, BufferedImage resized) {
+		return passthrough && isUnchanged(src, decoded, resized) &&
+				!ImageProbe.hasMetadata(src.getBuffer(), decoded.getFormat());
+	}
+
+	/**
+	 * Whether the output is the whole source, without orientation fix, written in the source format.
+	 */
+	private boolean isUnchanged(ImageFile src, DecodedImage decoded, BufferedImage resized) {
+		final BufferedImage image = decoded.getImage();
+		return src.getSize() >= 0 && resized == image &&
+				image.getWidth() == decoded.getWidth() && image.getHeight() == decoded.getHeight() &&
+				decoded.getOrientation() == ImageProbe.ORIENTATION_NORMAL &&
+				codecs.isSameWriter(decoded.getFormat(), getOutputFormat(src));
+	}
+
+	/**
+	 * Whether the source is a jpeg whose quantization tables show a quality not above the given one.
+	 */
+	private boolean isEncodedBelow(ImageFile src, String format, float quality) {
+		if (!"jpeg".equals(format)) {
+			return false;
+		}
+		final Float srcQuality = ImageProbe.getJpegQuality(src.getBuffer());
+		return srcQuality != null && srcQuality <= quality;
+	}
+
+	/**
+	 * Whether doResize fills the destination with the source, cropping what overflows.
+	 */
+	private boolean isCoverResize(Integer width, Integer height, boolean stretch, int srcWidth, int srcHeight) {
+		return width != null && height != null && !stretch && width > 0 && height > 0 &&
+				(allowImageEnlargement || (width < srcWidth && height < srcHeight));
 	}
 
-	private void persistImage(final ImageFile src, BufferedImage srcImg, BufferedImage resized,
-			FileAccess fDest, float quality, final Message<JsonObject> m) throws IOException {
-		final String orientation = getOrientation(src);
-		final BufferedImage imgToPersist;
-		if (orientation != null) {
-			imgToPersist = rotateImage(orientation, resized);
+	/**
+	 * Centered part of the source having the destination aspect ratio.
+	 */
+	private Rectangle getCoverRegion(int srcWidth, int srcHeight, int width, int height) {
+		if (srcHeight / (float) height < srcWidth / (float) width) {
+			final int regionWidth = Math.min(srcWidth, Math.max(1, Math.round(srcHeight * width / (float) height)));
+			return new Rectangle((srcWidth - regionWidth) / 2, 0, regionWidth, srcHeight);
 		} else {
-			imgToPersist = resized;
+			final int regionHeight = Math.min(srcHeight, Math.max(1, Math.round(srcWidth * height / (float) width)));
+			return new Rectangle(0, (srcHeight - regionHeight) / 2, srcWidth, regionHeight);
 		}
-		ImageFile outImg = compressImage(src, srcImg, imgToPersist, quality);
-		final int size = outImg.getData().length;
+	}
+
+	private void persistImage(ImageFile outImg, FileAccess fDest, final Message<JsonObject> m) {
+		persistImage(outImg, fDest, m, new JsonObject());
+	}
+
+	/**
+	 * Write the image, then release it and reply with its output and size added to the given reply.
+	 */
+	private void persistImage(final ImageFile outImg, FileAccess fDest, final Message<JsonObject> m,
+			final JsonObject reply) {
+		final int size = outImg.getSize();
 		fDest.write(m.body().getString("dest"), outImg, new Handler<String>() {
 			@Override
 			public void handle(String result) {
+				outImg.release();
 				if (result != null && !result.trim().isEmpty()) {
-					sendOK(m, new JsonObject().put("output", result).put("size", size));
+					sendOK(m, reply.put("output", result).put("size", size));
 				} else {
 					sendError(m, "Error writing file.");
 				}
@@ -450,95 +2006,80 @@ public class ImageResizer extends BusModBase implements Handler<Message<JsonObje
 		});
 	}
 
-	private void persistImage(ImageFile src, BufferedImage srcImg, BufferedImage resized,
-			FileAccess fDest, String destination, Handler<String> handler) throws IOException {
-		persistImage(src, srcImg, resized, fDest, destination, 0.8f, handler);
-	}
-
-	private void persistImage(ImageFile src, BufferedImage srcImg, BufferedImage resized,
-			FileAccess fDest, String destination, float quality, Handler<String> handler) throws IOException {
-		ImageFile outImg = compressImage(src, srcImg, resized, quality);
-		fDest.write(destination, outImg, handler);
+	private String getErrorMessage(Throwable cause) {
+		if (cause instanceof RejectedExecutionException) {
+			return "Image processing queue is full.";
+		} else if (cause instanceof ResizerException) {
+			return cause.getMessage();
+		}
+		logger.error("Error processing image.", cause);
+		return "Error processing image.";
 	}
 
-	private String getOrientation(ImageFile src) {
-		try {
-			Metadata metadata = ImageMetadataReader.readMetadata(src.getInputStream());
-			Directory directory = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
-			if (directory != null) {
-				for (Tag tag : directory.getTags()) {
-					if ("Orientation".equals(tag.getTagName())) {
-						return tag.getDescription();
-					}
-				}
-			}
-		} catch (IOException|ImageProcessingException e) {
-			logger.error("Image orientation error", e);
+	private void sendProcessingError(Message<JsonObject> m, Throwable cause) {
+		if (cause instanceof RejectedExecutionException) {
+			sendError(m, "Image processing queue is full.");
+		} else if (cause instanceof ResizerException && ((ResizerException) cause).getCode() != null) {
+			m.reply(new JsonObject().put("status", "error").put("message", cause.getMessage())
+					.put("code", ((ResizerException) cause).getCode()));
+		} else if (cause instanceof ResizerException) {
+			sendError(m, cause.getMessage());
+		} else if (cause instanceof Exception) {
+			logger.error("Error processing image.", cause);
+			sendError(m, "Error processing image.", (Exception) cause);
+		} else {
+			logger.error("Error processing image.", cause);
+			sendError(m, "Error processing image.");
 		}
-		return "";
 	}
 
-	private BufferedImage rotateImage(String orientation, BufferedImage source) {
+	private BufferedImage rotateImage(int orientation, BufferedImage source) {
 		BufferedImage dest = source;
 		switch (orientation) {
-			case "Top, right side (Mirror horizontal)":
+			case 2: // Top, right side (Mirror horizontal)
 				dest = rotate(source, Rotation.FLIP_HORZ);
 				break;
-			case "Bottom, right side (Rotate 180)":
+			case 3: // Bottom, right side (Rotate 180)
 				dest = rotate(source, Rotation.CW_180);
 				break;
-			case "Bottom, left side (Mirror vertical)":
+			case 4: // Bottom, left side (Mirror vertical)
 				dest = rotate(source, Rotation.FLIP_VERT);
 				break;
-			case "Left side, top (Mirror horizontal and rotate 270 CW)":
+			case 5: // Left side, top (Mirror horizontal and rotate 270 CW)
 				dest = rotate(rotate(source, Rotation.FLIP_HORZ), Rotation.CW_270);
 				break;
-			case "Right side, top (Rotate 90 CW)":
+			case 6: // Right side, top (Rotate 90 CW)
 				dest = rotate(source, Rotation.CW_90);
 				break;
-			case "Right side, bottom (Mirror horizontal and rotate 90 CW)":
-				rotate(rotate(source, Rotation.FLIP_HORZ), Rotation.CW_90);
+			case 7: // Right side, bottom (Mirror horizontal and rotate 90 CW)
+				dest = rotate(rotate(source, Rotation.FLIP_HORZ), Rotation.CW_90);
 				break;
-			case "Left side, bottom (Rotate 270 CW)":
+			case 8: // Left side, bottom (Rotate 270 CW)
 				dest = rotate(source, Rotation.CW_270);
 				break;
 		}
 		return dest;
 	}
 
-	private ImageWriter getImageWriter(ImageFile src) {
+	private ImageWriter getImageWriter(ImageFile src) throws IOException {
+		return codecs.getWriter(getOutputFormat(src));
+	}
+
+	/**
+	 * Format of the encoded images, from the source name or content type, jpg if it can't be written.
+	 */
+	private String getOutputFormat(ImageFile src) {
 		String extension = getExtension(src.getFilename());
 		if (extension == null || extension.isEmpty()) {
 			extension = getFormatByContentType(src.getContentType());
 		}
-		Iterator<ImageWriter> writers =  ImageIO.getImageWritersByFormatName(extension);
-		if (!writers.hasNext()) {
-			writers = ImageIO.getImageWritersByFormatName("jpg");
-		}
-
-		ImageWriter writer = null;
-		if ("png".equalsIgnoreCase(extension)) {
-			while (writers.hasNext()) {
-				ImageWriter candidate = writers.next();
-				final String className = candidate.getClass().getSimpleName();
-				logger.debug(className);
-				if ("CLibPNGImageWriter".equals(className)) {
-					writer = candidate;
-					break;
-				} else if (writer == null) {
-					writer = candidate;
-				}
-			}
-		} else {
-			writer = writers.next();
-		}
-		return writer;
+		return codecs.canWrite(extension) ? extension : "jpg";
 	}
 
 	private ImageFile compressImage(ImageFile src, BufferedImage srcImg, BufferedImage resized, float quality)
 			throws IOException {
 		srcImg.flush();
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputBuffer out = new OutputBuffer(bufferPool, getOutputSizeHint(resized));
 		if (logger.isDebugEnabled()) {
 			logger.debug("Original file name : " + src.getFilename());
 			logger.debug("Original file extension : " + getExtension(src.getFilename()));
@@ -547,8 +2088,101 @@ public class ImageResizer extends BusModBase implements Handler<Message<JsonObje
 		}
 
 		ImageWriter writer = getImageWriter(src);
+		try {
+			encode(writer, resized, quality, false, out);
+		} finally {
+			codecs.release(writer);
+		}
+		resized.flush();
+		return new ImageFile(out, src.getFilename(), src.getContentType());
+	}
+
+	/**
+	 * Initial size of the output buffer of an image : about two bits per pixel, what a photo takes
+	 * with the default quality.
+	 */
+	private int getOutputSizeHint(BufferedImage image) {
+		return (int) Math.min(Integer.MAX_VALUE, (long) image.getWidth() * image.getHeight() / 4);
+	}
+
+	/**
+	 * Encode the image with the highest quality, up to maxQuality, giving an output of at most maxBytes.
+	 * The quality is searched by bisection, the writer and two output buffers (the attempt and the best fitting
+	 * output) being reused by the attempts.
+	 * @throws ResizerException if the image can't be encoded in maxBytes
+	 */
+	private CompressedImage compressImage(ImageFile src, BufferedImage srcImg, BufferedImage resized,
+			float maxQuality, int maxBytes) throws IOException, ResizerException {
+		srcImg.flush();
+		final OutputBuffer out = new OutputBuffer(bufferPool, getOutputSizeHint(resized));
+		OutputBuffer spare = null;
+		final ImageWriter writer = getImageWriter(src);
+		OutputBuffer best = null;
+		// the quality actually written, none for the writers without compression quality
+		final boolean compressible = canCompress(writer);
+		Float bestQuality = compressible ? maxQuality : null;
+		try {
+			encode(writer, resized, maxQuality, compressible, out);
+			if (out.size() <= maxBytes) {
+				best = out;
+			} else if (compressible) {
+				spare = new OutputBuffer(bufferPool, out.size());
+				float low = 0f;
+				float high = maxQuality;
+				for (int i = 0; i < QUALITY_SEARCH_STEPS; i++) {
+					final float quality = (low + high) / 2;
+					spare.reset();
+					encode(writer, resized, quality, true, spare);
+					if (spare.size() <= maxBytes) {
+						final OutputBuffer previous = best;
+						best = spare;
+						spare = (previous != null) ? previous : out;
+						bestQuality = quality;
+						low = quality;
+					} else {
+						high = quality;
+					}
+				}
+			}
+		} finally {
+			codecs.release(writer);
+			// the attempts which aren't kept
+			if (out != best) {
+				out.release();
+			}
+			if (spare != null && spare != best && spare != out) {
+				spare.release();
+			}
+		}
+		resized.flush();
+		if (best == null) {
+			throw new ResizerException("Image can't be compressed in maxBytes.", MAX_BYTES_EXCEEDED);
+		}
+		return new CompressedImage(new ImageFile(best, src.getFilename(), src.getContentType()), bestQuality);
+	}
+
+	private void encode(ImageWriter writer, BufferedImage image, float quality, boolean explicit,
+			OutputBuffer out) throws IOException {
+		final ImageOutputStream ios = out.toImageOutputStream();
+		try {
+			encode(writer, image, quality, explicit, ios);
+		} finally {
+			ios.close();
+		}
+	}
+
+	/**
+	 * @param explicit whether a quality of 1 is written as such, instead of with the default quality of the writer
+	 */
+	private void encode(ImageWriter writer, BufferedImage image, float quality, boolean explicit,
+			ImageOutputStream ios) throws IOException {
+		writer.setOutput(ios);
+		writer.write(null, new IIOImage(image, null, null), getWriteParam(writer, quality, explicit));
+	}
+
+	private ImageWriteParam getWriteParam(ImageWriter writer, float quality, boolean explicit) {
 		ImageWriteParam param = writer.getDefaultWriteParam();
-		if (quality < 1f && param.canWriteCompressed()) {
+		if ((quality < 1f || explicit) && param.canWriteCompressed()) {
 			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
 			if (JAI_TIFFIMAGE_WRITER.equals(writer.getClass().getName())) {
 				param.setCompressionType("Deflate");
@@ -561,15 +2195,14 @@ public class ImageResizer extends BusModBase implements Handler<Message<JsonObje
 				param.setCompressionMode(ImageWriteParam.MODE_DISABLED);
 			}
 		}
-		ImageOutputStream ios = ImageIO.createImageOutputStream(out);
-		writer.setOutput(ios);
-		writer.write(null, new IIOImage(resized, null, null), param);
-		resized.flush();
-		ios.close();
-		ImageFile outImg = new ImageFile(out.toByteArray(), src.getFilename(), src.getContentType());
-		out.close();
-		writer.dispose();
-		return outImg;
+		return param;
+	}
+
+	/**
+	 * Whether the compression quality of the writer can be set (see getWriteParam).
+	 */
+	private boolean canCompress(ImageWriter writer) {
+		return getWriteParam(writer, 0.5f, true).getCompressionMode() == ImageWriteParam.MODE_EXPLICIT;
 	}
 
 	private FileAccess getFileAccess(Message<JsonObject> m, String path) {
@@ -586,6 +2219,13 @@ public class ImageResizer extends BusModBase implements Handler<Message<JsonObje
 		return fa;
 	}
 
+	private FileAccess getFileAccess(String path) {
+		if (path == null || !path.contains("://")) {
+			return null;
+		}
+		return fileAccessProviders.get(path.substring(0, path.indexOf("://")));
+	}
+
 	private String getExtension(String fileName) {
 		if (fileName != null) {
 			int idx = fileName.lastIndexOf('.');
@@ -619,14 +2259,191 @@ public class ImageResizer extends BusModBase implements Handler<Message<JsonObje
 			return Method.SPEED;
 		}
 	}
-	private static byte[] toByteArray(InputStream input) throws IOException {
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		byte[] data = new byte[8192];
-		int nRead;
-		while ((nRead = input.read(data, 0, data.length)) != -1) {
-			buffer.write(data, 0, nRead);
+
+	/**
+	 * Processing of a probed source image, run once the memory it needs is reserved.
+	 */
+	private interface ImageTask<T> {
+
+		/**
+		 * Bytes of memory needed by the rasters of the processing.
+		 */
+		long getMemoryCost(ImageProbe probe);
+
+		/**
+		 * Result of the operation when it writes the source untouched, so the source is neither given memory nor
+		 * decoded, or null. Called on the processing pool once the source is probed, the probe being disposed after.
+		 */
+		T passthrough(ImageFile src, ImageProbe probe) throws Exception;
+
+		T process(ImageFile src, ImageProbe probe, MemoryBudget.Reservation reservation) throws Exception;
+
+	}
+
+	/**
+	 * Probed source of a task, or the result of the task when it writes the source untouched.
+	 */
+	private static final class Probed<T> {
+
+		private final ImageProbe probe;
+		private final T passthrough;
+
+		private Probed(ImageProbe probe, T passthrough) {
+			this.probe = probe;
+			this.passthrough = passthrough;
+		}
+
+	}
+
+	/**
+	 * Image rendered by an operation, ready to be encoded : the decoded source, the image to encode before
+	 * its orientation is fixed, and the source it comes from.
+	 */
+	private static final class RenderedImage {
+
+		/**
+		 * Result of the passthrough of an operation, the source being written untouched.
+		 */
+		private static final RenderedImage SOURCE = new RenderedImage(null, null, null, 1f);
+
+		private final BufferedImage srcImg;
+		private final BufferedImage resized;
+		private final DecodedImage decoded;
+		private final float quality;
+
+		private RenderedImage(BufferedImage srcImg, BufferedImage resized, DecodedImage decoded, float quality) {
+			this.srcImg = srcImg;
+			this.resized = resized;
+			this.decoded = decoded;
+			this.quality = quality;
+		}
+
+	}
+
+	/**
+	 * Image written to its destination, or encoded in memory when its destination can't be streamed.
+	 */
+	private static final class StreamedImage implements SingleFlight.Shared {
+
+		private final ImageFile file;
+		private final String id;
+		private final long size;
+
+		private StreamedImage(ImageFile file, String id, long size) {
+			this.file = file;
+			this.id = id;
+			this.size = size;
+		}
+
+		@Override
+		public void retain(int count) {
+			if (file != null) {
+				file.retain(count);
+			}
+		}
+
+		@Override
+		public void release() {
+			if (file != null) {
+				file.release();
+			}
+		}
+
+	}
+
+	/**
+	 * Encoded image and the quality chosen to encode it.
+	 */
+	private static final class CompressedImage implements SingleFlight.Shared {
+
+		private final ImageFile file;
+		private final Float quality;
+
+		private CompressedImage(ImageFile file, Float quality) {
+			this.file = file;
+			this.quality = quality;
+		}
+
+		@Override
+		public void retain(int count) {
+			file.retain(count);
+		}
+
+		@Override
+		public void release() {
+			file.release();
+		}
+
+	}
+
+	/**
+	 * Encoded images of the compress steps of a pipeline, in order.
+	 */
+	private static final class PipelineOutputs implements SingleFlight.Shared {
+
+		private final ImageFile[] files;
+
+		private PipelineOutputs(ImageFile[] files) {
+			this.files = files;
+		}
+
+		@Override
+		public void retain(int count) {
+			for (ImageFile file : files) {
+				file.retain(count);
+			}
+		}
+
+		@Override
+		public void release() {
+			for (ImageFile file : files) {
+				file.release();
+			}
+		}
+
+	}
+
+	/**
+	 * Encoded image of a destination of resizeMultiple, by index.
+	 */
+	private static final class DestinationImage implements SingleFlight.Shared {
+
+		private final int index;
+		private final ImageFile file;
+
+		private DestinationImage(int index, ImageFile file) {
+			this.index = index;
+			this.file = file;
+		}
+
+		@Override
+		public void retain(int count) {
+			file.retain(count);
+		}
+
+		@Override
+		public void release() {
+			file.release();
+		}
+
+	}
+
+	/**
+	 * Source of an operation : the file read from its storage, or only its name and type when the source
+	 * is found in the decoded sources cache.
+	 */
+	private static final class Source {
+
+		private final ImageFile file;
+		private final DecodedCache.Entry decoded;
+		private final String decodedKey;
+
+		private Source(ImageFile file, DecodedCache.Entry decoded, String decodedKey) {
+			this.file = file;
+			this.decoded = decoded;
+			this.decodedKey = decodedKey;
 		}
-		return buffer.toByteArray();
+
 	}
 
 }
@@ -0,0 +1,283 @@
+package fr.wseduc.resizer;
+
+import fr.wseduc.webutils.DefaultAsyncResult;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Memory shared by the image operations of the JVM. Each operation reserves the memory its rasters will need,
+ * estimated from the header dimensions, before decoding. When the budget is exhausted the operation waits
+ * in a bounded queue, and is rejected if the queue is full or if it waits too long. An operation needing more
+ * than the whole budget isn't rejected : it runs alone, once every other reservation is released.
+ */
+public class MemoryBudget {
+
+	public static final String EXHAUSTED = "memory-budget-exhausted";
+	private static final Logger log = LoggerFactory.getLogger(MemoryBudget.class);
+	private static MemoryBudget instance;
+	private static int references;
+
+	private final long capacity;
+	private final int maxQueueSize;
+	private final long queueTimeout;
+	private final Deque<Waiter> waiters = new ArrayDeque<>();
+	private long reserved;
+	private long rejected;
+	private Reclaimer reclaimer;
+
+	MemoryBudget(long capacity, int maxQueueSize, long queueTimeout) {
+		this.capacity = capacity;
+		this.maxQueueSize = maxQueueSize;
+		this.queueTimeout = queueTimeout;
+	}
+
+	public static synchronized MemoryBudget getInstance(long capacity, int maxQueueSize, long queueTimeout) {
+		if (instance == null) {
+			instance = new MemoryBudget(capacity, maxQueueSize, queueTimeout);
+			log.info("Image memory budget : " + capacity + " bytes");
+		}
+		references++;
+		return instance;
+	}
+
+	/**
+	 * Reserve memory. The handler is called on the current context once the memory is available,
+	 * or with a {@link ResizerException} if the reservation is rejected.
+	 * A budget with no capacity is disabled and grants every reservation.
+	 */
+	public void reserve(final Context context, long needed, final Handler<AsyncResult<Reservation>> handler) {
+		final long bytes = (capacity > 0) ? Math.min(needed, capacity) : 0;
+		reclaim(bytes);
+		final String error;
+		synchronized (this) {
+			if (capacity <= 0) {
+				error = null;
+			} else if (waiters.isEmpty() && reserved + bytes <= capacity) {
+				reserved += bytes;
+				error = null;
+			} else if (waiters.size() < maxQueueSize) {
+				final Waiter waiter = new Waiter(context, bytes, handler);
+				waiters.add(waiter);
+				if (queueTimeout > 0) {
+					waiter.timerId = context.owner().setTimer(queueTimeout, new Handler<Long>() {
+						@Override
+						public void handle(Long id) {
+							timeout(waiter);
+						}
+					});
+				}
+				return;
+			} else {
+				rejected++;
+				error = "Memory budget exhausted.";
+			}
+		}
+		if (error != null) {
+			handler.handle(new DefaultAsyncResult<Reservation>(new ResizerException(error, EXHAUSTED)));
+		} else {
+			handler.handle(new DefaultAsyncResult<>(new Reservation(bytes)));
+		}
+	}
+
+	/**
+	 * Reject early an operation which could never be given the memory it needs, before its source is read.
+	 * @throws ResizerException if the memory needed exceeds the capacity of the budget
+	 */
+	public void checkCapacity(long bytes) throws ResizerException {
+		synchronized (this) {
+			if (capacity <= 0 || bytes <= capacity) {
+				return;
+			}
+			rejected++;
+		}
+		throw new ResizerException("Image too large for the memory budget.", EXHAUSTED);
+	}
+
+	/**
+	 * Reserve memory only if it is available right now and no operation is waiting for memory.
+	 * @return the reservation or null
+	 */
+	public Reservation tryReserve(long bytes) {
+		synchronized (this) {
+			if (capacity <= 0) {
+				return new Reservation(0);
+			}
+			if (!waiters.isEmpty() || reserved + bytes > capacity) {
+				return null;
+			}
+			reserved += bytes;
+		}
+		return new Reservation(bytes);
+	}
+
+	/**
+	 * Set the holder of memory which can be given back when operations need it (see {@link #tryReserve(long)}).
+	 */
+	public synchronized void setReclaimer(Reclaimer reclaimer) {
+		this.reclaimer = reclaimer;
+	}
+
+	/**
+	 * Ask the reclaimer for the memory missing to grant the waiting operations and the new reservation.
+	 */
+	private void reclaim(long bytes) {
+		final Reclaimer r;
+		long missing;
+		synchronized (this) {
+			if (reclaimer == null || capacity <= 0) {
+				return;
+			}
+			r = reclaimer;
+			missing = reserved + bytes - capacity;
+			for (Waiter waiter : waiters) {
+				missing += waiter.bytes;
+			}
+		}
+		if (missing > 0) {
+			r.reclaim(missing);
+		}
+	}
+
+	private void timeout(Waiter waiter) {
+		synchronized (this) {
+			if (!waiters.remove(waiter)) {
+				return;
+			}
+			rejected++;
+		}
+		waiter.handler.handle(new DefaultAsyncResult<Reservation>(
+				new ResizerException("Memory budget exhausted.", EXHAUSTED)));
+	}
+
+	private void release(long bytes) {
+		final List<Waiter> granted = new ArrayList<>();
+		synchronized (this) {
+			reserved -= bytes;
+			while (!waiters.isEmpty() && reserved + waiters.peek().bytes <= capacity) {
+				final Waiter waiter = waiters.poll();
+				reserved += waiter.bytes;
+				granted.add(waiter);
+			}
+		}
+		for (final Waiter waiter : granted) {
+			if (waiter.timerId >= 0) {
+				waiter.context.owner().cancelTimer(waiter.timerId);
+			}
+			waiter.context.runOnContext(new Handler<Void>() {
+				@Override
+				public void handle(Void v) {
+					waiter.handler.handle(new DefaultAsyncResult<>(new Reservation(waiter.bytes)));
+				}
+			});
+		}
+	}
+
+	public synchronized JsonObject getStats() {
+		return new JsonObject()
+				.put("capacity", capacity)
+				.put("reserved", reserved)
+				.put("queued", waiters.size())
+				.put("rejected", rejected);
+	}
+
+	/**
+	 * Release the budget when its last user is closed, dropping the operations still waiting for memory.
+	 */
+	public void close() {
+		final List<Waiter> dropped;
+		synchronized (MemoryBudget.class) {
+			if (--references > 0 || instance != this) {
+				return;
+			}
+			instance = null;
+			references = 0;
+			synchronized (this) {
+				dropped = new ArrayList<>(waiters);
+				waiters.clear();
+				reclaimer = null;
+			}
+		}
+		for (Waiter waiter : dropped) {
+			if (waiter.timerId >= 0) {
+				waiter.context.owner().cancelTimer(waiter.timerId);
+			}
+		}
+	}
+
+	public final class Reservation {
+
+		private final long bytes;
+		private boolean released;
+		private Handler<Void> releaseHandler;
+
+		private Reservation(long bytes) {
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Set the handler called when the reservation is released, at once if it already is.
+		 */
+		public void releaseHandler(Handler<Void> handler) {
+			synchronized (MemoryBudget.this) {
+				if (!released) {
+					releaseHandler = handler;
+					return;
+				}
+			}
+			handler.handle(null);
+		}
+
+		public void release() {
+			final Handler<Void> h;
+			synchronized (MemoryBudget.this) {
+				if (released) {
+					return;
+				}
+				released = true;
+				h = releaseHandler;
+				releaseHandler = null;
+			}
+			if (h != null) {
+				h.handle(null);
+			}
+			if (bytes > 0) {
+				MemoryBudget.this.release(bytes);
+			}
+		}
+
+	}
+
+	public interface Reclaimer {
+
+		/**
+		 * Release reservations of at least the given number of bytes if possible.
+		 */
+		void reclaim(long bytes);
+
+	}
+
+	private static final class Waiter {
+
+		private final Context context;
+		private final long bytes;
+		private final Handler<AsyncResult<Reservation>> handler;
+		private long timerId = -1;
+
+		private Waiter(Context context, long bytes, Handler<AsyncResult<Reservation>> handler) {
+			this.context = context;
+			this.bytes = bytes;
+			this.handler = handler;
+		}
+
+	}
+
+}
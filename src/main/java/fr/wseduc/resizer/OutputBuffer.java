@@ -0,0 +1,158 @@
+package fr.wseduc.resizer;
+
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Output of the encoders whose content is read in place instead of being copied by toByteArray.
+ * The array can come from a {@link BufferPool}, then it grows by pooled arrays and goes back to the pool once
+ * every holder of the buffer released it.
+ */
+public class OutputBuffer extends ByteArrayOutputStream {
+
+	private final BufferPool pool;
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	public OutputBuffer() {
+		super();
+		this.pool = null;
+	}
+
+	public OutputBuffer(int size) {
+		super(size);
+		this.pool = null;
+	}
+
+	public OutputBuffer(BufferPool pool, int size) {
+		super(0);
+		this.pool = pool;
+		this.buf = pool.acquire(size);
+	}
+
+	@Override
+	public synchronized void write(int b) {
+		ensureCapacity(count + 1);
+		buf[count++] = (byte) b;
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	/**
+	 * View of the written bytes, which must not be written after.
+	 */
+	public synchronized ByteBuffer toByteBuffer() {
+		return ByteBuffer.wrap(buf, 0, count);
+	}
+
+	/**
+	 * Seekable stream writing into the buffer, for the ImageIO writers, without the cache of the streams
+	 * created by ImageIO.createImageOutputStream.
+	 */
+	public ImageOutputStream toImageOutputStream() {
+		return new ImageOutputStreamImpl() {
+			@Override
+			public void write(int b) {
+				synchronized (OutputBuffer.this) {
+					flushPendingBits();
+					ensureCapacity((int) streamPos + 1);
+					buf[(int) streamPos++] = (byte) b;
+					count = Math.max(count, (int) streamPos);
+				}
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				synchronized (OutputBuffer.this) {
+					flushPendingBits();
+					ensureCapacity((int) streamPos + len);
+					System.arraycopy(b, off, buf, (int) streamPos, len);
+					streamPos += len;
+					count = Math.max(count, (int) streamPos);
+				}
+			}
+
+			@Override
+			public int read() {
+				synchronized (OutputBuffer.this) {
+					bitOffset = 0;
+					return (streamPos < count) ? buf[(int) streamPos++] & 0xff : -1;
+				}
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				synchronized (OutputBuffer.this) {
+					bitOffset = 0;
+					if (streamPos >= count) {
+						return -1;
+					}
+					final int n = Math.min(len, count - (int) streamPos);
+					System.arraycopy(buf, (int) streamPos, b, off, n);
+					streamPos += n;
+					return n;
+				}
+			}
+
+			@Override
+			public long length() {
+				synchronized (OutputBuffer.this) {
+					return count;
+				}
+			}
+
+			private void flushPendingBits() {
+				if (bitOffset != 0) {
+					try {
+						flushBits();
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Add holders of the buffer, each of them calling {@link #release()}.
+	 */
+	public void retain(int count) {
+		references.addAndGet(count);
+	}
+
+	/**
+	 * Give the array back to the pool once every holder released the buffer.
+	 */
+	public synchronized void release() {
+		if (references.decrementAndGet() == 0 && pool != null) {
+			pool.recycle(buf);
+			buf = new byte[0];
+			count = 0;
+		}
+	}
+
+	private void ensureCapacity(int min) {
+		if (min <= buf.length) {
+			return;
+		}
+		final int size = Math.max(min, buf.length << 1);
+		if (pool == null) {
+			buf = Arrays.copyOf(buf, size);
+			return;
+		}
+		final byte[] grown = pool.acquire(size);
+		System.arraycopy(buf, 0, grown, 0, count);
+		pool.recycle(buf);
+		buf = grown;
+	}
+
+}
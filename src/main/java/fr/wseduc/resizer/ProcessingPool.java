@@ -0,0 +1,101 @@
+package fr.wseduc.resizer;
+
+import fr.wseduc.webutils.DefaultAsyncResult;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded executor running the CPU bound stages (decode, scale, rotate, encode) of the image operations.
+ * The pool is shared by every resizer instance deployed in the JVM so the number of processing threads
+ * stays tied to the number of cores whatever the number of instances.
+ */
+public class ProcessingPool {
+
+	private static final Logger log = LoggerFactory.getLogger(ProcessingPool.class);
+	private static ProcessingPool instance;
+	private static int references;
+
+	private final ThreadPoolExecutor executor;
+
+	private ProcessingPool(int poolSize, int queueSize) {
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, "image-processing-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		}, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	public static synchronized ProcessingPool getInstance(int poolSize, int queueSize) {
+		if (instance == null) {
+			instance = new ProcessingPool(Math.max(1, poolSize), Math.max(1, queueSize));
+			log.info("Image processing pool started with " + poolSize + " threads and a queue of " + queueSize);
+		}
+		references++;
+		return instance;
+	}
+
+	/**
+	 * Run the task on a processing thread then call the handler back on the given context.
+	 * If the queue is full the handler is called immediately with a {@link RejectedExecutionException}.
+	 */
+	public <T> void execute(final Context context, final Callable<T> task, final Handler<AsyncResult<T>> handler) {
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					AsyncResult<T> result;
+					try {
+						result = new DefaultAsyncResult<T>(task.call());
+					} catch (Throwable t) {
+						result = new DefaultAsyncResult<T>(t);
+					}
+					final AsyncResult<T> r = result;
+					context.runOnContext(new Handler<Void>() {
+						@Override
+						public void handle(Void v) {
+							handler.handle(r);
+						}
+					});
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.warn("Image processing queue is full.");
+			handler.handle(new DefaultAsyncResult<T>(e));
+		}
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public int getQueueSize() {
+		return executor.getQueue().size();
+	}
+
+	public void close() {
+		synchronized (ProcessingPool.class) {
+			if (--references <= 0 && instance == this) {
+				executor.shutdown();
+				instance = null;
+				references = 0;
+			}
+		}
+	}
+
+}
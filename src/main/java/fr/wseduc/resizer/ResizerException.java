@@ -0,0 +1,26 @@
+package fr.wseduc.resizer;
+
+/**
+ * Error raised while processing an image whose message can be sent back as is to the sender,
+ * with an optional code identifying the error.
+ */
+public class ResizerException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String code;
+
+	public ResizerException(String message) {
+		this(message, null);
+	}
+
+	public ResizerException(String message, String code) {
+		super(message);
+		this.code = code;
+	}
+
+	public String getCode() {
+		return code;
+	}
+
+}
@@ -5,16 +5,32 @@ import org.entcore.common.s3.storage.StorageObject;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
-import io.vertx.core.buffer.Buffer;
 
 import java.net.URI;
+import java.util.UUID;
 
 public class S3Access implements FileAccess {
 
+    private final Vertx vertx;
     private final S3Client client;
+    private final S3HeaderReader headerReader;
+    private final UploadScheduler uploadScheduler;
 
     public S3Access(Vertx vertx, URI uri, String accessKey, String secretKey, String region, String bucket, String ssec) {
-        client = new S3Client(vertx, uri, accessKey, secretKey, region, bucket, ssec);
+        this(vertx, uri, accessKey, secretKey, region, bucket, ssec, null);
+    }
+
+    /**
+     * @param uploadScheduler the scheduler limiting, retrying and hedging the writes, or null to write directly
+     */
+    public S3Access(Vertx vertx, URI uri, String accessKey, String secretKey, String region, String bucket, String ssec,
+            UploadScheduler uploadScheduler) {
+        this.vertx = vertx;
+        this.client = new S3Client(vertx, uri, accessKey, secretKey, region, bucket, ssec);
+        // the customer keys of server side encryption are handled by the client only
+        this.headerReader = (ssec == null || ssec.isEmpty()) ?
+                new S3HeaderReader(vertx, uri, accessKey, secretKey, region) : null;
+        this.uploadScheduler = uploadScheduler;
     }
 
     @Override
@@ -30,7 +46,7 @@ public class S3Access implements FileAccess {
                 if (event.succeeded()) {
                     StorageObject f = event.result();
                     handler.handle(new ImageFile(
-                            f.getBuffer().getBytes(),
+                            f.getBuffer(),
                             f.getFilename(),
                             f.getContentType()
                     ));
@@ -42,21 +58,23 @@ public class S3Access implements FileAccess {
     }
 
     @Override
-    public void write(String dest, ImageFile img, final Handler<String> handler) {
+    public void readHeader(String src, int length, Handler<ImageFile> handler) {
+        String [] path = parsePath(src);
+        if (headerReader == null || path == null || path.length != 2) {
+            handler.handle(null);
+            return;
+        }
+        headerReader.read(path[0], path[1], length, handler);
+    }
+
+    @Override
+    public void write(String dest, final ImageFile img, final Handler<String> handler) {
         String [] path = parsePath(dest);
         if (path == null || path.length < 1) {
             handler.handle(null);
             return;
         }
-        StorageObject o;
-        if (path.length == 2 && path[1] != null && !path[1].trim().isEmpty()) {
-            o = new StorageObject(path[1], Buffer.buffer(img.getData()),
-                    img.getFilename(), img.getContentType());
-        } else {
-            o = new StorageObject(Buffer.buffer(img.getData()),
-                    img.getFilename(), img.getContentType());
-        }
-        client.writeFile(o, path[0], new Handler<AsyncResult<String>>() {
+        final Handler<AsyncResult<String>> result = new Handler<AsyncResult<String>>() {
             @Override
             public void handle(AsyncResult<String> event) {
                 if (event.succeeded()) {
@@ -65,12 +83,58 @@ public class S3Access implements FileAccess {
                     handler.handle(null);
                 }
             }
-        });
+        };
+        final String bucket = path[0];
+        final boolean hasId = path.length == 2 && path[1] != null && !path[1].trim().isEmpty();
+        if (uploadScheduler == null) {
+            StorageObject o;
+            if (hasId) {
+                o = new StorageObject(path[1], img.toBuffer(),
+                        img.getFilename(), img.getContentType());
+            } else {
+                o = new StorageObject(img.toBuffer(),
+                        img.getFilename(), img.getContentType());
+            }
+            client.writeFile(o, bucket, result);
+            return;
+        }
+        // the id is chosen here so the retried and hedged attempts write the same object
+        final StorageObject o = new StorageObject(hasId ? path[1] : UUID.randomUUID().toString(), img.toBuffer(),
+                img.getFilename(), img.getContentType());
+        uploadScheduler.submit(vertx.getOrCreateContext(), bucket, new UploadScheduler.Upload() {
+            @Override
+            public void start(final Handler<AsyncResult<String>> h) {
+                // a hedged attempt may still be sending the image once the write completed
+                img.retain(1);
+                client.writeFile(o, bucket, new Handler<AsyncResult<String>>() {
+                    @Override
+                    public void handle(AsyncResult<String> event) {
+                        img.release();
+                        h.handle(event);
+                    }
+                });
+            }
+        }, result);
+    }
+
+    @Override
+    public ImageOutput openOutput(String dest) {
+        // the client only uploads whole objects
+        return null;
+    }
+
+    @Override
+    public void getVersion(String src, Handler<String> handler) {
+        // objects metadata aren't exposed by the client
+        handler.handle(null);
     }
 
     @Override
     public void close() {
         client.close();
+        if (headerReader != null) {
+            headerReader.close();
+        }
     }
 
     private String[] parsePath(String path) {
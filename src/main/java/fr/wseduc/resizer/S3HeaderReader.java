@@ -0,0 +1,185 @@
+package fr.wseduc.resizer;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Ranged GETs of the first bytes of objects, which the S3 client doesn't expose, so sources can be probed
+ * before being downloaded entirely. Requests are signed with AWS Signature Version 4 and address the objects
+ * path-style (uri/bucket/id), which every S3 compatible store accepts.
+ */
+class S3HeaderReader {
+
+    private static final Logger log = LoggerFactory.getLogger(S3HeaderReader.class);
+    private static final String EMPTY_SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    private static final String SIGNED_HEADERS = "host;range;x-amz-content-sha256;x-amz-date";
+    private static final DateTimeFormatter AMZ_DATE =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final HttpClient client;
+    private final String host;
+    private final String basePath;
+    private final String accessKey;
+    private final String secretKey;
+    private final String region;
+
+    S3HeaderReader(Vertx vertx, URI uri, String accessKey, String secretKey, String region) {
+        final boolean ssl = "https".equalsIgnoreCase(uri.getScheme());
+        final int port = (uri.getPort() > 0) ? uri.getPort() : (ssl ? 443 : 80);
+        this.client = vertx.createHttpClient(new HttpClientOptions()
+                .setSsl(ssl).setDefaultHost(uri.getHost()).setDefaultPort(port));
+        this.host = (uri.getPort() > 0) ? uri.getHost() + ":" + port : uri.getHost();
+        String path = (uri.getRawPath() != null) ? uri.getRawPath() : "";
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        this.basePath = path;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.region = region;
+    }
+
+    /**
+     * Read the first bytes of an object.
+     * @param handler called with the header, the whole object if it is shorter, or null if it can't be read
+     */
+    void read(final String bucket, final String id, int length, final Handler<ImageFile> handler) {
+        final String path = basePath + "/" + encode(bucket) + "/" + encode(id);
+        final String range = "bytes=0-" + (length - 1);
+        final String amzDate = AMZ_DATE.format(Instant.now());
+        final String authorization;
+        try {
+            authorization = authorization(path, host, range, amzDate, accessKey, secretKey, region);
+        } catch (GeneralSecurityException e) {
+            log.error("Error signing the header request of " + bucket + ":" + id, e);
+            handler.handle(null);
+            return;
+        }
+        client.request(HttpMethod.GET, path, new Handler<AsyncResult<HttpClientRequest>>() {
+            @Override
+            public void handle(AsyncResult<HttpClientRequest> ar) {
+                if (ar.failed()) {
+                    log.debug("Error requesting the header of " + bucket + ":" + id, ar.cause());
+                    handler.handle(null);
+                    return;
+                }
+                final HttpClientRequest request = ar.result()
+                        .putHeader("Host", host)
+                        .putHeader("Range", range)
+                        .putHeader("x-amz-content-sha256", EMPTY_SHA256)
+                        .putHeader("x-amz-date", amzDate)
+                        .putHeader("Authorization", authorization);
+                request.send(new Handler<AsyncResult<HttpClientResponse>>() {
+                    @Override
+                    public void handle(AsyncResult<HttpClientResponse> res) {
+                        if (res.failed()) {
+                            log.debug("Error reading the header of " + bucket + ":" + id, res.cause());
+                            handler.handle(null);
+                            return;
+                        }
+                        final HttpClientResponse response = res.result();
+                        if (response.statusCode() != 206) {
+                            // not a partial content : the range is ignored or the object can't be read
+                            request.reset();
+                            handler.handle(null);
+                            return;
+                        }
+                        final String contentType = response.getHeader("Content-Type");
+                        response.body(new Handler<AsyncResult<Buffer>>() {
+                            @Override
+                            public void handle(AsyncResult<Buffer> body) {
+                                if (body.succeeded()) {
+                                    handler.handle(new ImageFile(body.result(), id, contentType));
+                                } else {
+                                    handler.handle(null);
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    void close() {
+        client.close();
+    }
+
+    /**
+     * Authorization header of a signed GET of a range of an object, without query string nor payload.
+     * @param amzDate the date of the request, as sent in the x-amz-date header
+     */
+    static String authorization(String path, String host, String range, String amzDate, String accessKey,
+            String secretKey, String region) throws GeneralSecurityException {
+        final String date = amzDate.substring(0, 8);
+        final String scope = date + "/" + region + "/s3/aws4_request";
+        final String canonicalRequest = "GET\n" + path + "\n\n" +
+                "host:" + host + "\n" +
+                "range:" + range + "\n" +
+                "x-amz-content-sha256:" + EMPTY_SHA256 + "\n" +
+                "x-amz-date:" + amzDate + "\n\n" +
+                SIGNED_HEADERS + "\n" + EMPTY_SHA256;
+        final String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n" +
+                hex(MessageDigest.getInstance("SHA-256").digest(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+        byte[] key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        key = hmac(key, region);
+        key = hmac(key, "s3");
+        key = hmac(key, "aws4_request");
+        return "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope + ",SignedHeaders=" + SIGNED_HEADERS +
+                ",Signature=" + hex(hmac(key, stringToSign));
+    }
+
+    private static byte[] hmac(byte[] key, String data) throws GeneralSecurityException {
+        final Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String hex(byte[] bytes) {
+        final char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * URI encode a path segment as the signature expects : every byte but the unreserved characters.
+     */
+    private static String encode(String segment) {
+        final StringBuilder sb = new StringBuilder();
+        for (byte b : segment.getBytes(StandardCharsets.UTF_8)) {
+            final char c = (char) (b & 0xff);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ||
+                    c == '-' || c == '_' || c == '.' || c == '~') {
+                sb.append(c);
+            } else {
+                sb.append('%').append(Character.toUpperCase(HEX[(b >> 4) & 0xf]))
+                        .append(Character.toUpperCase(HEX[b & 0xf]));
+            }
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,201 @@
+package fr.wseduc.resizer;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Operations in progress, shared by the module instances, so an operation identical to one already running
+ * waits for its result instead of being computed again.
+ */
+public class SingleFlight {
+
+	private static SingleFlight instance;
+
+	private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	private SingleFlight() {}
+
+	public static synchronized SingleFlight getInstance() {
+		if (instance == null) {
+			instance = new SingleFlight();
+		}
+		return instance;
+	}
+
+	/**
+	 * Run the operation, or join the running operation having the same key.
+	 * @param context the context the handler is called on
+	 * @param key the identity of the operation
+	 * @param operation the computation, which must call the given handler on the current context when done
+	 * @param handler the result handler, shared with the other callers of the operation
+	 */
+	public <T> void execute(Context context, String key, final Handler<Handler<AsyncResult<T>>> operation,
+			Handler<AsyncResult<T>> handler) {
+		execute(context, key, new Operation<T, Object>() {
+			@Override
+			public void run(Handler<Object> partialHandler, Handler<AsyncResult<T>> handler) {
+				operation.handle(handler);
+			}
+		}, null, handler);
+	}
+
+	/**
+	 * Run the operation, or join the running operation having the same key, receiving its partial results
+	 * as they are published, the ones published before joining first.
+	 * @param context the context the handlers are called on
+	 * @param key the identity of the operation
+	 * @param operation the computation, which must call the given handlers on the current context
+	 * @param partialHandler the partial results handler, or null
+	 * @param handler the result handler, called after the partial results
+	 */
+	@SuppressWarnings("unchecked")
+	public <T, P> void execute(Context context, final String key, Operation<T, P> operation,
+			final Handler<P> partialHandler, final Handler<AsyncResult<T>> handler) {
+		final Flight flight = new Flight();
+		while (true) {
+			final Flight running = flights.putIfAbsent(key, flight);
+			if (running == null) {
+				break;
+			}
+			if (running.join(context, (Handler) partialHandler, (Handler) handler)) {
+				coalesced.incrementAndGet();
+				return;
+			}
+			// the running operation just completed
+			flights.remove(key, running);
+		}
+		operation.run(new Handler<P>() {
+			@Override
+			public void handle(P partial) {
+				flight.publish(partial);
+				if (partialHandler != null) {
+					partialHandler.handle(partial);
+				}
+			}
+		}, new Handler<AsyncResult<T>>() {
+			@Override
+			public void handle(AsyncResult<T> result) {
+				flights.remove(key, flight);
+				flight.complete((AsyncResult) result);
+				handler.handle(result);
+			}
+		});
+	}
+
+	/**
+	 * Operation publishing partial results before its result.
+	 */
+	public interface Operation<T, P> {
+
+		void run(Handler<P> partialHandler, Handler<AsyncResult<T>> handler);
+
+	}
+
+	/**
+	 * Result released by each of its holders, which is retained for the callers joining the operation.
+	 */
+	public interface Shared {
+
+		void retain(int count);
+
+		void release();
+
+	}
+
+	public JsonObject getStats() {
+		return new JsonObject()
+				.put("in-flight", flights.size())
+				.put("coalesced", coalesced.get());
+	}
+
+	private static final class Flight {
+
+		private final List<Context> contexts = new ArrayList<>();
+		private final List<Handler<Object>> partialHandlers = new ArrayList<>();
+		private final List<Handler<AsyncResult<Object>>> handlers = new ArrayList<>();
+		// kept, and retained by the flight, until it completes so they are given to the callers joining later
+		private final List<Object> partials = new ArrayList<>();
+		private AsyncResult<Object> result;
+
+		private synchronized boolean join(Context context, Handler<Object> partialHandler,
+				Handler<AsyncResult<Object>> handler) {
+			if (result != null) {
+				return false;
+			}
+			contexts.add(context);
+			partialHandlers.add(partialHandler);
+			handlers.add(handler);
+			for (Object partial : partials) {
+				if (partial instanceof Shared) {
+					((Shared) partial).retain(1);
+				}
+				dispatch(context, partialHandler, partial);
+			}
+			return true;
+		}
+
+		/**
+		 * Give a partial result to the callers which joined the operation.
+		 */
+		private synchronized void publish(Object partial) {
+			partials.add(partial);
+			if (partial instanceof Shared) {
+				((Shared) partial).retain(handlers.size() + 1);
+			}
+			for (int i = 0; i < handlers.size(); i++) {
+				dispatch(contexts.get(i), partialHandlers.get(i), partial);
+			}
+		}
+
+		private static void dispatch(Context context, final Handler<Object> partialHandler, final Object partial) {
+			if (partialHandler == null) {
+				if (partial instanceof Shared) {
+					((Shared) partial).release();
+				}
+				return;
+			}
+			context.runOnContext(new Handler<Void>() {
+				@Override
+				public void handle(Void v) {
+					partialHandler.handle(partial);
+				}
+			});
+		}
+
+		/**
+		 * Give the result to the callers which joined the operation.
+		 */
+		private void complete(final AsyncResult<Object> result) {
+			synchronized (this) {
+				this.result = result;
+			}
+			if (result.succeeded() && result.result() instanceof Shared && !handlers.isEmpty()) {
+				((Shared) result.result()).retain(handlers.size());
+			}
+			for (int i = 0; i < handlers.size(); i++) {
+				final Handler<AsyncResult<Object>> handler = handlers.get(i);
+				contexts.get(i).runOnContext(new Handler<Void>() {
+					@Override
+					public void handle(Void v) {
+						handler.handle(result);
+					}
+				});
+			}
+			for (Object partial : partials) {
+				if (partial instanceof Shared) {
+					((Shared) partial).release();
+				}
+			}
+		}
+
+	}
+
+}
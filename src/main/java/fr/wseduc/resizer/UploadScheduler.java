@@ -0,0 +1,278 @@
+package fr.wseduc.resizer;
+
+import fr.wseduc.webutils.DefaultAsyncResult;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Uploads to the object store, shared by the module instances : at most a given number of uploads run at once,
+ * overall and per bucket, the others waiting in order. Failed uploads are retried with an exponential backoff,
+ * and an upload still running after the hedge delay is sent a second time when a slot is free, the first
+ * attempt to succeed completing it. Uploads must be idempotent, writing an object of a known id.
+ */
+public class UploadScheduler {
+
+	private static final Logger log = LoggerFactory.getLogger(UploadScheduler.class);
+	private static UploadScheduler instance;
+	private static int references;
+
+	private final int maxConcurrency;
+	private final int maxBucketConcurrency;
+	private final int maxRetries;
+	private final long retryDelay;
+	private final long hedgeDelay;
+	private final ArrayDeque<Task> queue = new ArrayDeque<>();
+	private final Map<String, Integer> bucketsInFlight = new HashMap<>();
+	private int inFlight;
+	private long uploads;
+	private long retries;
+	private long hedged;
+	private long hedgeWins;
+	private long failures;
+
+	UploadScheduler(int maxConcurrency, int maxBucketConcurrency, int maxRetries, long retryDelay,
+			long hedgeDelay) {
+		this.maxConcurrency = Math.max(1, maxConcurrency);
+		this.maxBucketConcurrency = Math.max(1, Math.min(this.maxConcurrency, maxBucketConcurrency));
+		this.maxRetries = Math.max(0, maxRetries);
+		this.retryDelay = Math.max(1L, retryDelay);
+		this.hedgeDelay = hedgeDelay;
+	}
+
+	public static synchronized UploadScheduler getInstance(int maxConcurrency, int maxBucketConcurrency,
+			int maxRetries, long retryDelay, long hedgeDelay) {
+		if (instance == null) {
+			instance = new UploadScheduler(maxConcurrency, maxBucketConcurrency, maxRetries, retryDelay, hedgeDelay);
+			log.info("Upload scheduler : " + instance.maxConcurrency + " uploads, " +
+					instance.maxBucketConcurrency + " per bucket, " + instance.maxRetries + " retries" +
+					(hedgeDelay > 0 ? ", hedged after " + hedgeDelay + " ms" : ""));
+		}
+		references++;
+		return instance;
+	}
+
+	/**
+	 * An attempt of an upload, which must call the given handler on the context it was started on.
+	 */
+	public interface Upload {
+
+		void start(Handler<AsyncResult<String>> handler);
+
+	}
+
+	/**
+	 * Run the upload once a slot is free.
+	 * @param context the context the attempts are started and the handler is called back on
+	 * @param bucket the bucket written, limiting the uploads running at once
+	 * @param handler called with the result of the first successful attempt, or with the last failure
+	 */
+	public void submit(Context context, String bucket, Upload upload, Handler<AsyncResult<String>> handler) {
+		synchronized (this) {
+			uploads++;
+			queue.add(new Task(context, bucket, upload, handler));
+		}
+		dispatch();
+	}
+
+	public synchronized JsonObject getStats() {
+		return new JsonObject()
+				.put("queued", queue.size())
+				.put("in-flight", inFlight)
+				.put("uploads", uploads)
+				.put("retries", retries)
+				.put("hedged", hedged)
+				.put("hedge-wins", hedgeWins)
+				.put("failures", failures);
+	}
+
+	/**
+	 * Drop the scheduler when its last user is closed. The uploads already submitted still run to completion.
+	 */
+	public void close() {
+		synchronized (UploadScheduler.class) {
+			if (--references <= 0 && instance == this) {
+				instance = null;
+				references = 0;
+			}
+		}
+	}
+
+	/**
+	 * Start the queued uploads for which a slot is free, skipping the ones of the busy buckets.
+	 */
+	private void dispatch() {
+		final List<Task> started = new ArrayList<>();
+		synchronized (this) {
+			final Iterator<Task> it = queue.iterator();
+			while (inFlight < maxConcurrency && it.hasNext()) {
+				final Task task = it.next();
+				if (acquire(task.bucket)) {
+					it.remove();
+					started.add(task);
+				}
+			}
+		}
+		for (Task task : started) {
+			start(task, false);
+		}
+	}
+
+	private boolean acquire(String bucket) {
+		final Integer running = bucketsInFlight.get(bucket);
+		if (inFlight >= maxConcurrency || (running != null && running >= maxBucketConcurrency)) {
+			return false;
+		}
+		bucketsInFlight.put(bucket, (running != null ? running : 0) + 1);
+		inFlight++;
+		return true;
+	}
+
+	private void release(String bucket) {
+		final int running = bucketsInFlight.get(bucket) - 1;
+		if (running > 0) {
+			bucketsInFlight.put(bucket, running);
+		} else {
+			bucketsInFlight.remove(bucket);
+		}
+		inFlight--;
+	}
+
+	/**
+	 * Start an attempt of the task, which already holds its slot.
+	 */
+	private void start(final Task task, final boolean hedge) {
+		synchronized (this) {
+			task.running++;
+		}
+		task.context.runOnContext(new Handler<Void>() {
+			@Override
+			public void handle(Void v) {
+				if (!hedge && hedgeDelay > 0) {
+					task.hedgeTimerId = task.context.owner().setTimer(hedgeDelay, new Handler<Long>() {
+						@Override
+						public void handle(Long id) {
+							hedge(task);
+						}
+					});
+				}
+				try {
+					task.upload.start(new Handler<AsyncResult<String>>() {
+						@Override
+						public void handle(AsyncResult<String> ar) {
+							completed(task, hedge, ar);
+						}
+					});
+				} catch (RuntimeException e) {
+					// rejected before any I/O : the attempt failed, its slot is given back
+					completed(task, hedge, new DefaultAsyncResult<String>(e));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Send the upload a second time, unless it is done or every slot is taken : hedging only uses spare capacity.
+	 */
+	private void hedge(Task task) {
+		synchronized (this) {
+			if (task.done || task.hedged || task.running == 0 || !acquire(task.bucket)) {
+				return;
+			}
+			task.hedged = true;
+			hedged++;
+		}
+		start(task, true);
+	}
+
+	private void completed(final Task task, boolean hedge, AsyncResult<String> ar) {
+		final AsyncResult<String> result;
+		final int running;
+		long backoff = 0;
+		synchronized (this) {
+			release(task.bucket);
+			task.running--;
+			if (task.done) {
+				result = null;
+			} else if (ar.succeeded()) {
+				task.done = true;
+				if (hedge) {
+					hedgeWins++;
+				}
+				result = ar;
+			} else if (task.running > 0) {
+				// the other attempt may still succeed
+				result = null;
+			} else if (task.retries < maxRetries) {
+				task.retries++;
+				retries++;
+				task.hedged = false;
+				final long delay = retryDelay << Math.min(task.retries - 1, 16);
+				// timers need at least 1 ms
+				backoff = Math.max(1L, delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+				result = null;
+			} else {
+				task.done = true;
+				failures++;
+				result = ar;
+			}
+			running = task.running;
+		}
+		if ((running == 0 || task.done) && task.hedgeTimerId >= 0) {
+			task.context.owner().cancelTimer(task.hedgeTimerId);
+			task.hedgeTimerId = -1;
+		}
+		if (result != null) {
+			if (result.failed()) {
+				log.error("Upload to bucket " + task.bucket + " failed after " + (task.retries + 1) +
+						" attempts.", result.cause());
+			}
+			task.handler.handle(result);
+		} else if (backoff > 0) {
+			log.debug("Upload to bucket " + task.bucket + " failed, retrying in " + backoff + " ms.", ar.cause());
+			task.context.owner().setTimer(backoff, new Handler<Long>() {
+				@Override
+				public void handle(Long id) {
+					synchronized (UploadScheduler.this) {
+						queue.addFirst(task);
+					}
+					dispatch();
+				}
+			});
+		}
+		dispatch();
+	}
+
+	private static final class Task {
+
+		private final Context context;
+		private final String bucket;
+		private final Upload upload;
+		private final Handler<AsyncResult<String>> handler;
+		private int running;
+		private int retries;
+		private boolean hedged;
+		private boolean done;
+		private long hedgeTimerId = -1;
+
+		private Task(Context context, String bucket, Upload upload, Handler<AsyncResult<String>> handler) {
+			this.context = context;
+			this.bucket = bucket;
+			this.upload = upload;
+			this.handler = handler;
+		}
+
+	}
+
+}
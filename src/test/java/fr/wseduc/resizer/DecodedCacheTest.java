@@ -0,0 +1,66 @@
+package fr.wseduc.resizer;
+
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.awt.image.BufferedImage;
+
+@RunWith(VertxUnitRunner.class)
+public class DecodedCacheTest {
+
+  @Test
+  public void testReclaimSkipsEntriesInUse(final TestContext context) {
+    final MemoryBudget budget = new MemoryBudget(1000, 4, 0);
+    final DecodedCache cache = new DecodedCache(budget, 1000, 60000);
+    final DecodedCache.Entry decoded = decode(cache, "a", 400);
+    final DecodedCache.Entry hit = cache.get("a");
+    context.assertNotNull(hit);
+    cache.reclaim(400);
+    context.assertEquals(1, cache.getStats().getInteger("entries"), "Entry in use shouldn't be evicted");
+    context.assertEquals(400L, budget.getStats().getLong("reserved"));
+    decoded.release();
+    hit.release();
+    hit.release();
+    cache.reclaim(400);
+    context.assertEquals(0, cache.getStats().getInteger("entries"));
+    context.assertEquals(0L, budget.getStats().getLong("reserved"));
+  }
+
+  @Test
+  public void testEvictedEntryReleasedByLastUser(final TestContext context) {
+    final MemoryBudget budget = new MemoryBudget(1000, 4, 0);
+    final DecodedCache cache = new DecodedCache(budget, 500, 60000);
+    final DecodedCache.Entry first = decode(cache, "a", 400);
+    final DecodedCache.Entry second = decode(cache, "b", 400);
+    context.assertNull(cache.get("a"), "Least recently used entry should be evicted");
+    context.assertEquals(800L, budget.getStats().getLong("reserved"),
+        "Evicted entry in use should keep its memory");
+    first.release();
+    context.assertEquals(400L, budget.getStats().getLong("reserved"));
+    second.release();
+    context.assertEquals(400L, budget.getStats().getLong("reserved"), "Cached entry should keep its memory");
+  }
+
+  @Test
+  public void testReleaseWithTheReservation(final TestContext context) {
+    final MemoryBudget budget = new MemoryBudget(1000, 4, 0);
+    final DecodedCache cache = new DecodedCache(budget, 400, 60000);
+    decode(cache, "a", 400).release();
+    final ImageProbe probe = ImageProbe.decoded(cache.get("a"));
+    final MemoryBudget.Reservation reservation = budget.tryReserve(100);
+    reservation.releaseHandler(v -> probe.releaseDecoded());
+    decode(cache, "b", 400).release();
+    context.assertEquals(900L, budget.getStats().getLong("reserved"));
+    reservation.release();
+    context.assertEquals(400L, budget.getStats().getLong("reserved"),
+        "Evicted entry should be released with the reservation of its user");
+  }
+
+  private DecodedCache.Entry decode(DecodedCache cache, String key, long bytes) {
+    return cache.reserve(key, bytes, key + ".png", "image/png")
+        .put(new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB), "png", ImageProbe.ORIENTATION_NORMAL);
+  }
+
+}
@@ -0,0 +1,80 @@
+package fr.wseduc.resizer;
+
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+@RunWith(VertxUnitRunner.class)
+public class ImageProbeTest {
+
+  @Test
+  public void testJpegQualityEstimate(final TestContext context) throws IOException {
+    final BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+    for (float quality : new float[]{0.25f, 0.5f, 0.75f, 0.9f}) {
+      final Float estimate = ImageProbe.getJpegQuality(ByteBuffer.wrap(encodeJpeg(image, quality)));
+      context.assertNotNull(estimate, "No luminance table found");
+      context.assertInRange(quality, estimate, 0.02, "Quality of a jpeg saved with " + quality);
+    }
+  }
+
+  @Test
+  public void testJpegQualityWithoutTables(final TestContext context) {
+    context.assertNull(ImageProbe.getJpegQuality(ByteBuffer.wrap(new byte[]{(byte) 0xff, (byte) 0xd8})));
+  }
+
+  @Test
+  public void testProbeHeader(final TestContext context) throws IOException {
+    final BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+    final Random random = new Random(0);
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        image.setRGB(x, y, random.nextInt());
+      }
+    }
+    final byte[] jpeg = encodeJpeg(image, 0.75f);
+    // the dimensions are in the frame header, before the compressed data
+    final ImageProbe probe = ImageProbe.probeHeader(ByteBuffer.wrap(jpeg, 0, jpeg.length / 2).slice(),
+        ImageCodecs.getInstance(1));
+    context.assertNotNull(probe, "Truncated jpeg should be recognized");
+    context.assertEquals("jpeg", probe.getFormat());
+    context.assertEquals(64, probe.getWidth());
+    context.assertEquals(48, probe.getHeight());
+    context.assertEquals(ImageProbe.ORIENTATION_NORMAL, probe.getOrientation());
+    probe.dispose();
+  }
+
+  @Test
+  public void testProbeHeaderUnsupported(final TestContext context) throws IOException {
+    final byte[] header = new byte[1024];
+    System.arraycopy("%PDF-1.4".getBytes(StandardCharsets.US_ASCII), 0, header, 0, 8);
+    context.assertNull(ImageProbe.probeHeader(ByteBuffer.wrap(header), ImageCodecs.getInstance(1)));
+  }
+
+  private byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+    final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+      final ImageWriteParam param = writer.getDefaultWriteParam();
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(quality);
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+    return out.toByteArray();
+  }
+}
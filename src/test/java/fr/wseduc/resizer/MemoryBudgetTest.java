@@ -0,0 +1,131 @@
+package fr.wseduc.resizer;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(VertxUnitRunner.class)
+public class MemoryBudgetTest {
+  private static Vertx vertx;
+  private static Context vxContext;
+
+  @BeforeClass
+  public static void setUp() {
+    vertx = Vertx.vertx();
+    vxContext = vertx.getOrCreateContext();
+  }
+
+  @AfterClass
+  public static void tearDown(final TestContext context) {
+    vertx.close(context.asyncAssertSuccess());
+  }
+
+  @Test
+  public void testReserveWithinCapacity(final TestContext context) {
+    final Async async = context.async();
+    final MemoryBudget budget = new MemoryBudget(100, 4, 0);
+    vxContext.runOnContext(v -> budget.reserve(vxContext, 60, ar -> {
+      context.assertTrue(ar.succeeded());
+      context.assertEquals(60L, budget.getStats().getLong("reserved"));
+      ar.result().release();
+      ar.result().release();
+      context.assertEquals(0L, budget.getStats().getLong("reserved"), "Releasing twice must only release once");
+      async.complete();
+    }));
+  }
+
+  @Test
+  public void testQueueUntilReleased(final TestContext context) {
+    final Async async = context.async();
+    final MemoryBudget budget = new MemoryBudget(100, 4, 0);
+    vxContext.runOnContext(v -> budget.reserve(vxContext, 80, first -> {
+      budget.reserve(vxContext, 40, second -> {
+        context.assertTrue(second.succeeded());
+        context.assertEquals(40L, budget.getStats().getLong("reserved"));
+        context.assertEquals(0, budget.getStats().getInteger("queued"));
+        second.result().release();
+        async.complete();
+      });
+      context.assertEquals(1, budget.getStats().getInteger("queued"), "Reservation should wait for memory");
+      first.result().release();
+    }));
+  }
+
+  @Test
+  public void testQueueTimeout(final TestContext context) {
+    final Async async = context.async();
+    final MemoryBudget budget = new MemoryBudget(100, 4, 50);
+    vxContext.runOnContext(v -> budget.reserve(vxContext, 100, first ->
+      budget.reserve(vxContext, 10, second -> {
+        assertExhausted(context, second);
+        context.assertEquals(1L, budget.getStats().getLong("rejected"));
+        context.assertEquals(0, budget.getStats().getInteger("queued"));
+        first.result().release();
+        context.assertEquals(0L, budget.getStats().getLong("reserved"));
+        async.complete();
+      })));
+  }
+
+  @Test
+  public void testQueueFull(final TestContext context) {
+    final Async async = context.async(2);
+    final MemoryBudget budget = new MemoryBudget(100, 1, 0);
+    vxContext.runOnContext(v -> budget.reserve(vxContext, 100, first -> {
+      budget.reserve(vxContext, 10, queued -> {
+        context.assertTrue(queued.succeeded(), "Queued reservation should be granted once memory is released");
+        queued.result().release();
+        async.countDown();
+      });
+      budget.reserve(vxContext, 10, rejected -> {
+        assertExhausted(context, rejected);
+        first.result().release();
+        async.countDown();
+      });
+    }));
+  }
+
+  @Test
+  public void testLargerThanCapacityRunsAlone(final TestContext context) {
+    final Async async = context.async();
+    final MemoryBudget budget = new MemoryBudget(100, 4, 0);
+    vxContext.runOnContext(v -> budget.reserve(vxContext, 30, first -> {
+      budget.reserve(vxContext, 500, large -> {
+        context.assertTrue(large.succeeded(), "Operation larger than the budget should not be rejected");
+        context.assertEquals(100L, budget.getStats().getLong("reserved"));
+        budget.reserve(vxContext, 10, next -> {
+          context.assertEquals(10L, budget.getStats().getLong("reserved"));
+          next.result().release();
+          async.complete();
+        });
+        context.assertEquals(1, budget.getStats().getInteger("queued"), "Operation should wait for the large one");
+        large.result().release();
+      });
+      context.assertEquals(1, budget.getStats().getInteger("queued"), "Large operation should wait to run alone");
+      first.result().release();
+    }));
+  }
+
+  @Test
+  public void testDisabledBudget(final TestContext context) {
+    final Async async = context.async();
+    final MemoryBudget budget = new MemoryBudget(0, 0, 0);
+    vxContext.runOnContext(v -> budget.reserve(vxContext, Long.MAX_VALUE, ar -> {
+      context.assertTrue(ar.succeeded());
+      context.assertEquals(0L, budget.getStats().getLong("reserved"));
+      async.complete();
+    }));
+  }
+
+  private void assertExhausted(TestContext context, AsyncResult<MemoryBudget.Reservation> ar) {
+    context.assertTrue(ar.failed(), "Reservation should be rejected");
+    context.assertTrue(ar.cause() instanceof ResizerException);
+    context.assertEquals(MemoryBudget.EXHAUSTED, ((ResizerException) ar.cause()).getCode());
+  }
+}
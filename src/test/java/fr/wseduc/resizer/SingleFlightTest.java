@@ -0,0 +1,89 @@
+package fr.wseduc.resizer;
+
+import fr.wseduc.webutils.DefaultAsyncResult;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(VertxUnitRunner.class)
+public class SingleFlightTest {
+  private static Vertx vertx;
+  private static Context vxContext;
+
+  @BeforeClass
+  public static void setUp() {
+    vertx = Vertx.vertx();
+    vxContext = vertx.getOrCreateContext();
+  }
+
+  @AfterClass
+  public static void tearDown(final TestContext context) {
+    vertx.close(context.asyncAssertSuccess());
+  }
+
+  @Test
+  public void testPartialResultsGivenToJoinedCallers(final TestContext context) {
+    final Async async = context.async(2);
+    final SingleFlight singleFlight = SingleFlight.getInstance();
+    final String key = "partials-" + System.nanoTime();
+    final Part first = new Part(0);
+    final Part second = new Part(1);
+    final List<Integer> joined = new ArrayList<>();
+    vxContext.runOnContext(v -> {
+      final List<Handler<Part>> partials = new ArrayList<>();
+      final List<Handler<AsyncResult<Void>>> results = new ArrayList<>();
+      singleFlight.<Void, Part>execute(vxContext, key, (partialHandler, handler) -> {
+        partials.add(partialHandler);
+        results.add(handler);
+      }, part -> {}, ar -> {
+        context.assertTrue(ar.succeeded());
+        async.countDown();
+      });
+      partials.get(0).handle(first);
+      singleFlight.<Void, Part>execute(vxContext, key, (partialHandler, handler) ->
+          context.fail("Identical operation should be joined"), part -> joined.add(part.index), ar -> {
+        context.assertEquals(2, joined.size(), "Partial results should be given before the result");
+        context.assertEquals(0, joined.get(0), "Partial results published before joining should be replayed first");
+        context.assertEquals(1, joined.get(1));
+        async.countDown();
+      });
+      partials.get(0).handle(second);
+      results.get(0).handle(new DefaultAsyncResult<>((Void) null));
+      // one reference for the joined caller, the flight reference being released once complete
+      context.assertEquals(1, first.references.get());
+      context.assertEquals(1, second.references.get());
+    });
+  }
+
+  private static final class Part implements SingleFlight.Shared {
+
+    private final int index;
+    private final AtomicInteger references = new AtomicInteger();
+
+    private Part(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public void retain(int count) {
+      references.addAndGet(count);
+    }
+
+    @Override
+    public void release() {
+      references.decrementAndGet();
+    }
+  }
+}
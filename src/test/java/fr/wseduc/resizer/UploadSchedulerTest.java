@@ -0,0 +1,159 @@
+package fr.wseduc.resizer;
+
+import fr.wseduc.webutils.DefaultAsyncResult;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(VertxUnitRunner.class)
+public class UploadSchedulerTest {
+  private static Vertx vertx;
+  private static Context vxContext;
+
+  @BeforeClass
+  public static void setUp() {
+    vertx = Vertx.vertx();
+    vxContext = vertx.getOrCreateContext();
+  }
+
+  @AfterClass
+  public static void tearDown(final TestContext context) {
+    vertx.close(context.asyncAssertSuccess());
+  }
+
+  @Test
+  public void testRetriesThenFails(final TestContext context) {
+    final Async async = context.async();
+    final UploadScheduler scheduler = new UploadScheduler(4, 4, 2, 1, 0);
+    final FakeUpload upload = new FakeUpload(100, 0);
+    vxContext.runOnContext(v -> scheduler.submit(vxContext, "bucket", upload, ar -> {
+      context.assertTrue(ar.failed(), "Upload should fail once the retries are exhausted");
+      context.assertEquals(3, upload.attempts.size(), "One attempt and two retries");
+      context.assertEquals(2L, scheduler.getStats().getLong("retries"));
+      context.assertEquals(1L, scheduler.getStats().getLong("failures"));
+      context.assertEquals(0, scheduler.getStats().getInteger("in-flight"));
+      async.complete();
+    }));
+  }
+
+  @Test
+  public void testRetrySucceeds(final TestContext context) {
+    final Async async = context.async();
+    final UploadScheduler scheduler = new UploadScheduler(4, 4, 3, 1, 0);
+    final FakeUpload upload = new FakeUpload(1, 0);
+    vxContext.runOnContext(v -> scheduler.submit(vxContext, "bucket", upload, ar -> {
+      context.assertTrue(ar.succeeded());
+      context.assertEquals("attempt-2", ar.result());
+      context.assertEquals(2, upload.attempts.size(), "Upload shouldn't be retried once it succeeded");
+      context.assertEquals(1L, scheduler.getStats().getLong("retries"));
+      async.complete();
+    }));
+  }
+
+  @Test
+  public void testHedgeWinsAndLoserDoesNotComplete(final TestContext context) {
+    final Async async = context.async();
+    final UploadScheduler scheduler = new UploadScheduler(4, 4, 0, 1, 50);
+    final FakeUpload upload = new FakeUpload(0, 1);
+    final AtomicInteger completions = new AtomicInteger();
+    vxContext.runOnContext(v -> scheduler.submit(vxContext, "bucket", upload, ar -> {
+      completions.incrementAndGet();
+      context.assertTrue(ar.succeeded());
+      context.assertEquals("attempt-2", ar.result(), "The hedged attempt should complete the upload");
+      context.assertEquals(2, upload.attempts.size(), "Stalled upload should be sent a second time");
+      context.assertEquals(1L, scheduler.getStats().getLong("hedged"));
+      context.assertEquals(1L, scheduler.getStats().getLong("hedge-wins"));
+      // the stalled attempt succeeding late must be ignored
+      upload.attempts.get(0).handle(new DefaultAsyncResult<>("attempt-1"));
+      context.assertEquals(1, completions.get(), "Upload must only be completed once");
+      context.assertEquals(0, scheduler.getStats().getInteger("in-flight"));
+      async.complete();
+    }));
+  }
+
+  @Test
+  public void testBucketConcurrency(final TestContext context) {
+    final Async async = context.async(3);
+    final UploadScheduler scheduler = new UploadScheduler(4, 1, 0, 1, 0);
+    final FakeUpload first = new FakeUpload(0, 100);
+    final FakeUpload second = new FakeUpload(0, 100);
+    final FakeUpload other = new FakeUpload(0, 100);
+    vxContext.runOnContext(v -> {
+      scheduler.submit(vxContext, "a", first, ar -> async.countDown());
+      scheduler.submit(vxContext, "a", second, ar -> async.countDown());
+      scheduler.submit(vxContext, "b", other, ar -> async.countDown());
+      vxContext.runOnContext(started -> {
+        context.assertEquals(1, first.attempts.size());
+        context.assertEquals(0, second.attempts.size(), "Bucket already has an upload running");
+        context.assertEquals(1, other.attempts.size(), "Other buckets shouldn't wait");
+        context.assertEquals(2, scheduler.getStats().getInteger("in-flight"));
+        context.assertEquals(1, scheduler.getStats().getInteger("queued"));
+        first.attempts.get(0).handle(new DefaultAsyncResult<>("first"));
+        other.attempts.get(0).handle(new DefaultAsyncResult<>("other"));
+        vxContext.runOnContext(next -> {
+          context.assertEquals(1, second.attempts.size(), "Upload should start once its bucket is free");
+          second.attempts.get(0).handle(new DefaultAsyncResult<>("second"));
+        });
+      });
+    });
+  }
+
+  @Test
+  public void testUploadThrowing(final TestContext context) {
+    final Async async = context.async();
+    final UploadScheduler scheduler = new UploadScheduler(1, 1, 1, 1, 50);
+    final AtomicInteger attempts = new AtomicInteger();
+    vxContext.runOnContext(v -> scheduler.submit(vxContext, "bucket", handler -> {
+      attempts.incrementAndGet();
+      throw new IllegalStateException("rejected by the client");
+    }, ar -> {
+      context.assertTrue(ar.failed(), "Upload throwing should fail");
+      context.assertEquals(2, attempts.get(), "Upload throwing should be retried");
+      context.assertEquals(0, scheduler.getStats().getInteger("in-flight"), "Slot should be given back");
+      // the bucket isn't blocked by the failed upload
+      scheduler.submit(vxContext, "bucket", new FakeUpload(0, 0), next -> {
+        context.assertTrue(next.succeeded());
+        async.complete();
+      });
+    }));
+  }
+
+  /**
+   * Upload whose first attempts fail at once, the next ones stalling until they are completed by the test,
+   * the others succeeding at once.
+   */
+  private static final class FakeUpload implements UploadScheduler.Upload {
+
+    private final List<Handler<AsyncResult<String>>> attempts = new ArrayList<>();
+    private final int failing;
+    private final int stalling;
+
+    private FakeUpload(int failing, int stalling) {
+      this.failing = failing;
+      this.stalling = stalling;
+    }
+
+    @Override
+    public void start(Handler<AsyncResult<String>> handler) {
+      attempts.add(handler);
+      final int attempt = attempts.size();
+      if (attempt <= failing) {
+        handler.handle(new DefaultAsyncResult<String>(new RuntimeException("upload error")));
+      } else if (attempt > failing + stalling) {
+        handler.handle(new DefaultAsyncResult<>("attempt-" + attempt));
+      }
+    }
+  }
+}
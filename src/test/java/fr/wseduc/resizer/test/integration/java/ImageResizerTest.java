@@ -1,9 +1,14 @@
 package fr.wseduc.resizer.test.integration.java;
 
+import fr.wseduc.resizer.ImageProbe;
 import fr.wseduc.resizer.ImageResizer;
 import io.vertx.core.Context;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Handler;
 import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.unit.Async;
 import io.vertx.ext.unit.TestContext;
@@ -12,11 +17,25 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
 
 @RunWith(VertxUnitRunner.class)
 public class ImageResizerTest {
@@ -30,7 +49,8 @@ public class ImageResizerTest {
     final Context vxContext = vertx.getOrCreateContext();
     vxContext.config()
       .put("fs-flat", true)
-      .put("allow-image-enlargement", true);
+      .put("allow-image-enlargement", true)
+      .put("resizing-passthrough", true);
     resizer.init(vertx, vxContext);
     resizer.start(startPromise);
     startPromise.future().onComplete(ar -> {
@@ -131,6 +151,458 @@ public class ImageResizerTest {
       .onFailure(context::fail);
   }
 
+  @Test
+  public void testCascadeResizeMultiple(final TestContext context) {
+    final Async async = context.async();
+    final String dest = "/tmp/cascade_out_" + System.currentTimeMillis() + "_";
+    resizer.getVertx().eventBus().<JsonObject>request("image.resizer", new JsonObject()
+        .put("action", "resizeMultiple")
+        .put("src", getPathToImageFile("img.jpg"))
+        .put("cascade", true)
+        .put("destinations", new JsonArray()
+          .add(new JsonObject().put("dest", "file://" + dest).put("width", 50).put("height", 50))
+          .add(new JsonObject().put("dest", "file://" + dest).put("width", 400).put("height", 300))
+          .add(new JsonObject().put("dest", "file://" + dest).put("width", 120))))
+      .onSuccess( reply -> {
+        final JsonObject body = reply.body();
+        if(isOk(body)) {
+          final JsonObject outputs = body.getJsonObject("outputs");
+          checkOutputImage(context, dest + outputs.getString("50x50"), 50, 50);
+          checkOutputImage(context, dest + outputs.getString("400x300"), 400, 300);
+          checkOutputImage(context, dest + outputs.getString("120x0"), 120, 181);
+          async.complete();
+        } else {
+          context.fail(body.getString("message"));
+        }
+      })
+      .onFailure(context::fail);
+  }
+
+  @Test
+  public void testResizeBatch(final TestContext context) {
+    final Async async = context.async();
+    final String dest = "/tmp/batch_out_" + System.currentTimeMillis() + "_";
+    final JsonArray sources = new JsonArray()
+      .add(getPathToImageFile("img.jpg"))
+      .add(getPathToImageFile("missing.jpg"))
+      .add(getPathToImageFile("img.jpg"));
+    resizer.getVertx().eventBus().<JsonObject>request("image.resizer", new JsonObject()
+        .put("action", "resizeBatch")
+        .put("sources", sources)
+        .put("destinations", new JsonArray()
+          .add(new JsonObject().put("dest", "file://" + dest).put("width", 100).put("height", 100))
+          .add(new JsonObject().put("dest", "file://" + dest).put("width", 50).put("height", 50))))
+      .onSuccess( reply -> {
+        final JsonObject body = reply.body();
+        if(isOk(body)) {
+          context.assertEquals(2, body.getInteger("processed"));
+          context.assertEquals(1, body.getInteger("failed"), "Missing source should fail alone");
+          final JsonArray results = body.getJsonArray("results");
+          context.assertEquals(sources.size(), results.size());
+          for (int i = 0; i < sources.size(); i++) {
+            final JsonObject result = results.getJsonObject(i);
+            context.assertEquals(sources.getString(i), result.getString("src"), "Results should follow the sources");
+            if (i == 1) {
+              context.assertEquals("error", result.getString("status"));
+            } else {
+              context.assertEquals("ok", result.getString("status"));
+              checkOutputImage(context, dest + result.getJsonObject("outputs").getString("100x100"), 100, 100);
+              checkOutputImage(context, dest + result.getJsonObject("outputs").getString("50x50"), 50, 50);
+            }
+          }
+          async.complete();
+        } else {
+          context.fail(body.getString("message"));
+        }
+      })
+      .onFailure(context::fail);
+  }
+
+  @Test
+  public void testResizeBatchProgress(final TestContext context) {
+    final Async async = context.async(4);
+    final String dest = "/tmp/batch_out_" + System.currentTimeMillis() + "_";
+    final String progressAddress = "image.resizer.test.progress." + System.currentTimeMillis();
+    final JsonArray sources = new JsonArray()
+      .add(getPathToImageFile("img.jpg"))
+      .add(getPathToImageFile("missing.jpg"))
+      .add(getPathToImageFile("img.jpg"));
+    final JsonObject[] progress = new JsonObject[sources.size()];
+    final MessageConsumer<JsonObject> consumer = resizer.getVertx().eventBus().consumer(progressAddress, message -> {
+      final JsonObject result = message.body();
+      final int index = result.getInteger("index");
+      context.assertNull(progress[index], "Each source should be reported once");
+      progress[index] = result;
+      context.assertEquals(sources.getString(index), result.getString("src"), "Index should be the one of the source");
+      context.assertEquals(index == 1 ? "error" : "ok", result.getString("status"));
+      if (index != 1) {
+        checkOutputImage(context, dest + result.getJsonObject("outputs").getString("100x100"), 100, 100);
+      }
+      async.countDown();
+    });
+    resizer.getVertx().eventBus().<JsonObject>request("image.resizer", new JsonObject()
+        .put("action", "resizeBatch")
+        .put("sources", sources)
+        .put("progress-address", progressAddress)
+        .put("destinations", new JsonArray()
+          .add(new JsonObject().put("dest", "file://" + dest).put("width", 100).put("height", 100))))
+      .onSuccess( reply -> {
+        final JsonObject body = reply.body();
+        if(isOk(body)) {
+          context.assertEquals(2, body.getInteger("processed"));
+          context.assertEquals(1, body.getInteger("failed"));
+          context.assertNull(body.getJsonArray("results"), "Results should only be sent to the progress address");
+          async.countDown();
+        } else {
+          context.fail(body.getString("message"));
+        }
+      })
+      .onFailure(context::fail);
+    async.handler(ar -> consumer.unregister());
+  }
+
+  @Test
+  public void testResizeBatchNamedDestination(final TestContext context) {
+    final Async async = context.async();
+    resizer.getVertx().eventBus().<JsonObject>request("image.resizer", new JsonObject()
+        .put("action", "resizeBatch")
+        .put("sources", new JsonArray().add(getPathToImageFile("img.jpg")))
+        .put("destinations", new JsonArray()
+          .add(new JsonObject().put("dest", "file:///tmp:batch_out.jpg").put("width", 100).put("height", 100))))
+      .onSuccess( reply -> {
+        final JsonObject body = reply.body();
+        if(isOk(body)) {
+          context.fail("Expected failure due to a destination naming a file.");
+        } else {
+          context.assertTrue(body.getString("message").contains("batch destinations can't name a file"),
+              "Unexpected response: " + body.getString("message"));
+          async.complete();
+        }
+      })
+      .onFailure(context::fail);
+  }
+
+  @Test
+  public void testCropRegionRead(final TestContext context) {
+    final Async async = context.async();
+    final String dest = "/tmp/crop_out_" + System.currentTimeMillis() + "_";
+    getStats(context, "image.resizer", before -> resizer.getVertx().eventBus().<JsonObject>request("image.resizer",
+        new JsonObject()
+          .put("action", "crop")
+          .put("src", getPathToImageFile("img.jpg"))
+          .put("dest", "file://" + dest)
+          .put("x", 10)
+          .put("y", 20)
+          .put("width", 200)
+          .put("height", 150))
+      .onSuccess( reply -> {
+        final JsonObject body = reply.body();
+        if(isOk(body)) {
+          checkOutputImage(context, dest + body.getString("output"), 200, 150);
+          getStats(context, "image.resizer", after -> {
+            context.assertEquals(before.getJsonObject("io").getLong("region-reads") + 1,
+                after.getJsonObject("io").getLong("region-reads"), "Only the cropped region should be decoded");
+            async.complete();
+          });
+        } else {
+          context.fail(body.getString("message"));
+        }
+      })
+      .onFailure(context::fail));
+  }
+
+  @Test
+  public void testDerivativeCache(final TestContext context) throws IOException {
+    final Async async = context.async();
+    final String dest = "/tmp/cached_out_" + System.currentTimeMillis() + "_";
+    final File cacheDir = Files.createTempDirectory("derivative-cache").toFile();
+    final JsonObject config = new JsonObject()
+      .put("address", "image.resizer.cache")
+      .put("fs-flat", true)
+      .put("derivative-cache-size", 10485760)
+      .put("derivative-cache-dir", cacheDir.getAbsolutePath());
+    final JsonObject resize = new JsonObject()
+      .put("action", "resize")
+      .put("src", getPathToImageFile("img.jpg"))
+      .put("dest", "file://" + dest)
+      .put("width", 100)
+      .put("height", 100);
+    deployResizer(context, config, id -> resizeAndGetStats(context, "image.resizer.cache", resize, dest, first -> {
+      context.assertEquals(1L, first.getLong("misses"));
+      context.assertEquals(1, first.getInteger("disk-entries"));
+      context.assertEquals(1L, countFiles(context, cacheDir), "Result should be written to the disk tier");
+      resizeAndGetStats(context, "image.resizer.cache", resize, dest, second -> {
+        context.assertEquals(1L, second.getLong("hits"), "Result should be served from memory");
+        // the memory tier is dropped with its last user, the disk tier is indexed again on start
+        resizer.getVertx().undeployVerticle(id, context.asyncAssertSuccess(v ->
+          deployResizer(context, config, next -> resizeAndGetStats(context, "image.resizer.cache", resize, dest,
+            third -> {
+              context.assertEquals(0L, third.getLong("misses"));
+              context.assertEquals(1L, third.getLong("disk-hits"), "Result should be served from the disk tier");
+              resizer.getVertx().undeployVerticle(next, context.asyncAssertSuccess(u -> async.complete()));
+            }))));
+      });
+    }));
+  }
+
+  @Test
+  public void testExifThumbnailResize(final TestContext context) throws IOException {
+    final Async async = context.async();
+    // a grey source of which the embedded thumbnail is red, so the decoded image can be told from the output
+    final BufferedImage image = new BufferedImage(640, 480, BufferedImage.TYPE_INT_RGB);
+    fill(image, 0x808080);
+    final BufferedImage thumbnail = new BufferedImage(160, 120, BufferedImage.TYPE_INT_RGB);
+    fill(thumbnail, 0xff0000);
+    final File srcFile = File.createTempFile("exif_src_", ".jpg");
+    Files.write(srcFile.toPath(), withExifThumbnail(encodeJpeg(image, 0.9f), encodeJpeg(thumbnail, 0.9f)));
+    final String src = "file://" + srcFile.getParent() + File.separator + ":" + srcFile.getName();
+    final String dest = "/tmp/exif_out_" + System.currentTimeMillis() + "_";
+    final JsonObject config = new JsonObject()
+      .put("address", "image.resizer.thumbnails")
+      .put("fs-flat", true)
+      .put("exif-thumbnails", true);
+    deployResizer(context, config, id -> getStats(context, "image.resizer.thumbnails", before ->
+      resizeAndGetIo(context, "image.resizer.thumbnails", src, dest, 80, 60, (small, first) -> {
+        context.assertTrue(isRed(small), "Thumbnail should be decoded for a smaller size");
+        context.assertEquals(before.getJsonObject("io").getLong("exif-thumbnail-reads") + 1,
+            first.getLong("exif-thumbnail-reads"));
+        resizeAndGetIo(context, "image.resizer.thumbnails", src, dest, 320, 240, (large, second) -> {
+          context.assertFalse(isRed(large), "Image should be decoded for a size larger than the thumbnail");
+          context.assertEquals(first.getLong("exif-thumbnail-reads"), second.getLong("exif-thumbnail-reads"));
+          resizer.getVertx().undeployVerticle(id, context.asyncAssertSuccess(v -> async.complete()));
+        });
+      })));
+  }
+
+  @Test
+  public void testMappedReads(final TestContext context) throws IOException {
+    final Async async = context.async();
+    // a source smaller than the mapping threshold is read in the heap
+    final BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+    fill(image, 0x808080);
+    final File smallFile = File.createTempFile("small_src_", ".jpg");
+    Files.write(smallFile.toPath(), encodeJpeg(image, 0.9f));
+    final String small = "file://" + smallFile.getParent() + File.separator + ":" + smallFile.getName();
+    final String dest = "/tmp/mapped_out_" + System.currentTimeMillis() + "_";
+    final JsonObject config = new JsonObject()
+      .put("address", "image.resizer.mapped")
+      .put("fs-flat", true)
+      .put("fs-mapped-reads", true);
+    deployResizer(context, config, id -> getStats(context, "image.resizer.mapped", before ->
+      resizeAndGetIo(context, "image.resizer.mapped", getPathToImageFile("img.jpg"), dest, 100, 100, (img, first) -> {
+        context.assertEquals(before.getJsonObject("io").getLong("mapped-reads") + 1, first.getLong("mapped-reads"),
+            "Source should be memory mapped");
+        resizeAndGetIo(context, "image.resizer.mapped", small, dest, 32, 24, (smallImg, second) -> {
+          context.assertEquals(first.getLong("mapped-reads"), second.getLong("mapped-reads"),
+              "Small source should be read in the heap");
+          resizer.getVertx().undeployVerticle(id, context.asyncAssertSuccess(v -> async.complete()));
+        });
+      })));
+  }
+
+  @Test
+  public void testStreamingWrites(final TestContext context) throws IOException {
+    final Async async = context.async();
+    final File destDir = Files.createTempDirectory("streamed").toFile();
+    final String dest = destDir.getAbsolutePath() + File.separator;
+    final JsonObject config = new JsonObject()
+      .put("address", "image.resizer.streaming")
+      .put("fs-flat", true)
+      .put("streaming-writes", true);
+    deployResizer(context, config, id -> getStats(context, "image.resizer.streaming", before ->
+      resizeAndGetIo(context, "image.resizer.streaming", getPathToImageFile("img.jpg"), dest, 100, 100, (img, io) -> {
+        context.assertEquals(before.getJsonObject("io").getLong("streamed-writes") + 1, io.getLong("streamed-writes"),
+            "Output should be encoded straight to the destination");
+        context.assertEquals(1L, countFiles(context, destDir), "Temporary file should be renamed to the output");
+        try (Stream<Path> files = Files.list(destDir.toPath())) {
+          context.assertFalse(files.anyMatch(f -> f.getFileName().toString().endsWith(".tmp")),
+              "No temporary file should be left");
+        } catch (IOException e) {
+          context.fail(e);
+        }
+        resizer.getVertx().undeployVerticle(id, context.asyncAssertSuccess(v -> async.complete()));
+      })));
+  }
+
+  @Test
+  public void testPipeline(final TestContext context) {
+    final Async async = context.async();
+    final String dest = "/tmp/pipeline_out_" + System.currentTimeMillis() + "_";
+    resizer.getVertx().eventBus().<JsonObject>request("image.resizer", new JsonObject()
+        .put("action", "pipeline")
+        .put("src", getPathToImageFile("img.jpg"))
+        .put("steps", new JsonArray()
+          .add(new JsonObject().put("action", "crop").put("x", 10).put("y", 20).put("width", 400).put("height", 300))
+          .add(new JsonObject().put("action", "compress").put("dest", "file://" + dest))
+          .add(new JsonObject().put("action", "resize").put("width", 100).put("height", 100))
+          .add(new JsonObject().put("action", "rotate").put("angle", 90))
+          .add(new JsonObject().put("action", "resize").put("width", 50))
+          .add(new JsonObject().put("action", "compress").put("dest", "file://" + dest).put("quality", 0.5f))))
+      .onSuccess( reply -> {
+        final JsonObject body = reply.body();
+        if(isOk(body)) {
+          final JsonArray outputs = body.getJsonArray("outputs");
+          checkOutputImage(context, dest + outputs.getJsonObject(0).getString("output"), 400, 300);
+          checkOutputImage(context, dest + outputs.getJsonObject(1).getString("output"), 50, 50);
+          async.complete();
+        } else {
+          context.fail(body.getString("message"));
+        }
+      })
+      .onFailure(context::fail);
+  }
+
+  @Test
+  public void testPipelineCropOutOfBounds(final TestContext context) {
+    final Async async = context.async();
+    final String dest = "/tmp/pipeline_out_" + System.currentTimeMillis() + "_";
+    resizer.getVertx().eventBus().<JsonObject>request("image.resizer", new JsonObject()
+        .put("action", "pipeline")
+        .put("src", getPathToImageFile("img.jpg"))
+        .put("steps", new JsonArray()
+          .add(new JsonObject().put("action", "crop").put("x", 10).put("y", 20).put("width", 100000).put("height", 300))
+          .add(new JsonObject().put("action", "compress").put("dest", "file://" + dest))))
+      .onSuccess( reply -> {
+        final JsonObject body = reply.body();
+        if(isOk(body)) {
+          context.fail("Expected failure due to crop out of the source.");
+        } else {
+          context.assertEquals("Source image too small for crop.", body.getString("message"));
+          async.complete();
+        }
+      })
+      .onFailure(context::fail);
+  }
+
+  @Test
+  public void testCompressToMaxBytes(final TestContext context) {
+    final Async async = context.async();
+    final String dest = "/tmp/compress_out_" + System.currentTimeMillis() + "_";
+    final int maxBytes = 30000;
+    resizer.getVertx().eventBus().<JsonObject>request("image.resizer", new JsonObject()
+        .put("action", "compress")
+        .put("src", getPathToImageFile("img.jpg"))
+        .put("dest", "file://" + dest)
+        .put("maxBytes", maxBytes))
+      .onSuccess( reply -> {
+        final JsonObject body = reply.body();
+        if(isOk(body)) {
+          final File output = new File(dest + body.getString("output"));
+          context.assertTrue(output.length() <= maxBytes, "Output is larger than maxBytes");
+          context.assertEquals((long) body.getInteger("size"), output.length());
+          final Float quality = body.getFloat("quality");
+          context.assertNotNull(quality, "Chosen quality should be replied");
+          context.assertTrue(quality > 0 && quality < 1, "Quality should be lowered to fit in maxBytes");
+          checkJpegQuality(context, output, quality);
+          async.complete();
+        } else {
+          context.fail(body.getString("message"));
+        }
+      })
+      .onFailure(context::fail);
+  }
+
+  @Test
+  public void testCompressToMaxBytesAboveDefaultQuality(final TestContext context) {
+    final Async async = context.async();
+    final String dest = "/tmp/compress_out_" + System.currentTimeMillis() + "_";
+    // larger than the output of the default writer quality (0.75), smaller than the output of quality 1
+    final int maxBytes = 300000;
+    resizer.getVertx().eventBus().<JsonObject>request("image.resizer", new JsonObject()
+        .put("action", "compress")
+        .put("src", getPathToImageFile("img.jpg"))
+        .put("dest", "file://" + dest)
+        .put("maxBytes", maxBytes))
+      .onSuccess( reply -> {
+        final JsonObject body = reply.body();
+        if(isOk(body)) {
+          final File output = new File(dest + body.getString("output"));
+          context.assertTrue(output.length() <= maxBytes, "Output is larger than maxBytes");
+          final Float quality = body.getFloat("quality");
+          context.assertTrue(quality > 0.75f && quality < 1, "Qualities above the writer default should be tried");
+          checkJpegQuality(context, output, quality);
+          async.complete();
+        } else {
+          context.fail(body.getString("message"));
+        }
+      })
+      .onFailure(context::fail);
+  }
+
+  @Test
+  public void testCompressFirstAttemptFitsMaxBytes(final TestContext context) {
+    final Async async = context.async();
+    final String dest = "/tmp/compress_out_" + System.currentTimeMillis() + "_";
+    resizer.getVertx().eventBus().<JsonObject>request("image.resizer", new JsonObject()
+        .put("action", "compress")
+        .put("src", getPathToImageFile("img.jpg"))
+        .put("dest", "file://" + dest)
+        .put("quality", 0.9f)
+        .put("maxBytes", 10000000))
+      .onSuccess( reply -> {
+        final JsonObject body = reply.body();
+        if(isOk(body)) {
+          final File output = new File(dest + body.getString("output"));
+          context.assertEquals((long) body.getInteger("size"), output.length());
+          context.assertEquals(0.9f, body.getFloat("quality"), "First attempt uses the requested quality");
+          checkJpegQuality(context, output, 0.9f);
+          async.complete();
+        } else {
+          context.fail(body.getString("message"));
+        }
+      })
+      .onFailure(context::fail);
+  }
+
+  @Test
+  public void testCompressPassthrough(final TestContext context) throws IOException {
+    final Async async = context.async();
+    // a jpeg without metadata, saved with a quality of 0.6
+    final byte[] source = encodeJpeg(ImageIO.read(new File(basePath + "src/test/resources/img.jpg")), 0.6f);
+    final File srcFile = File.createTempFile("passthrough_src_", ".jpg");
+    Files.write(srcFile.toPath(), source);
+    final Float srcQuality = ImageProbe.getJpegQuality(ByteBuffer.wrap(source));
+    final String dest = "/tmp/passthrough_out_" + System.currentTimeMillis() + "_";
+    resizer.getVertx().eventBus().<JsonObject>request("image.resizer", new JsonObject()
+        .put("action", "compress")
+        .put("src", "file://" + srcFile.getParent() + File.separator + ":" + srcFile.getName())
+        .put("dest", "file://" + dest)
+        .put("quality", srcQuality))
+      .onSuccess( reply -> {
+        final JsonObject body = reply.body();
+        if(isOk(body)) {
+          try {
+            final byte[] output = Files.readAllBytes(new File(dest + body.getString("output")).toPath());
+            context.assertTrue(Arrays.equals(source, output), "Source should be written untouched");
+          } catch (IOException e) {
+            context.fail(e);
+          }
+          async.complete();
+        } else {
+          context.fail(body.getString("message"));
+        }
+      })
+      .onFailure(context::fail);
+  }
+
+  @Test
+  public void testCompressMaxBytesExceeded(final TestContext context) {
+    final Async async = context.async();
+    final String dest = "/tmp/compress_out_" + System.currentTimeMillis() + "_";
+    resizer.getVertx().eventBus().<JsonObject>request("image.resizer", new JsonObject()
+        .put("action", "compress")
+        .put("src", getPathToImageFile("img.jpg"))
+        .put("dest", "file://" + dest)
+        .put("maxBytes", 100))
+      .onSuccess( reply -> {
+        final JsonObject body = reply.body();
+        context.assertFalse(isOk(body), "Image can't fit in 100 bytes");
+        context.assertEquals(ImageResizer.MAX_BYTES_EXCEEDED, body.getString("code"));
+        async.complete();
+      })
+      .onFailure(context::fail);
+  }
+
   private void checkOutputImage(TestContext context, String src, int width, int height) {
     File outputFile = new File(src);
     if (!outputFile.exists()) {
@@ -151,6 +623,133 @@ public class ImageResizerTest {
 
   }
 
+  private void checkJpegQuality(TestContext context, File output, float quality) {
+    try {
+      final Float written = ImageProbe.getJpegQuality(ByteBuffer.wrap(Files.readAllBytes(output.toPath())));
+      context.assertNotNull(written, "No quantization table in " + output);
+      context.assertInRange(quality, written, 0.02, "Replied quality should be the quality written");
+    } catch (IOException e) {
+      context.fail(e);
+    }
+  }
+
+  private byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+    final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+      final ImageWriteParam param = writer.getDefaultWriteParam();
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(quality);
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+    return out.toByteArray();
+  }
+
+  private void deployResizer(final TestContext context, final JsonObject config, final Handler<String> handler) {
+    resizer.getVertx().deployVerticle(new ImageResizer(), new DeploymentOptions().setConfig(config),
+        context.asyncAssertSuccess(handler));
+  }
+
+  /**
+   * Resize to 100x100, check the output, then get the derivative cache counters.
+   */
+  private void resizeAndGetStats(final TestContext context, final String address, final JsonObject resize,
+      final String dest, final Handler<JsonObject> handler) {
+    resizer.getVertx().eventBus().<JsonObject>request(address, resize)
+      .onSuccess( reply -> {
+        final JsonObject body = reply.body();
+        if(isOk(body)) {
+          checkOutputImage(context, dest + body.getString("output"), 100, 100);
+          getStats(context, address, stats -> handler.handle(stats.getJsonObject("cache")));
+        } else {
+          context.fail(body.getString("message"));
+        }
+      })
+      .onFailure(context::fail);
+  }
+
+  private long countFiles(final TestContext context, final File dir) {
+    try (Stream<Path> files = Files.walk(dir.toPath())) {
+      return files.filter(Files::isRegularFile).count();
+    } catch (IOException e) {
+      context.fail(e);
+      return -1;
+    }
+  }
+
+  /**
+   * Resize the source, check the output size, then get the output image and the io counters.
+   */
+  private void resizeAndGetIo(final TestContext context, final String address, final String src, final String dest,
+      final int width, final int height, final BiConsumer<BufferedImage, JsonObject> handler) {
+    resizer.getVertx().eventBus().<JsonObject>request(address, new JsonObject()
+        .put("action", "resize")
+        .put("src", src)
+        .put("dest", "file://" + dest)
+        .put("width", width)
+        .put("height", height))
+      .onSuccess( reply -> {
+        final JsonObject body = reply.body();
+        if(isOk(body)) {
+          final String output = dest + body.getString("output");
+          checkOutputImage(context, output, width, height);
+          try {
+            final BufferedImage img = ImageIO.read(new File(output));
+            getStats(context, address, stats -> handler.accept(img, stats.getJsonObject("io")));
+          } catch (IOException e) {
+            context.fail(e);
+          }
+        } else {
+          context.fail(body.getString("message"));
+        }
+      })
+      .onFailure(context::fail);
+  }
+
+  private void fill(BufferedImage image, int rgb) {
+    final Graphics2D g = image.createGraphics();
+    g.setColor(new Color(rgb));
+    g.fillRect(0, 0, image.getWidth(), image.getHeight());
+    g.dispose();
+  }
+
+  private boolean isRed(BufferedImage image) {
+    final Color c = new Color(image.getRGB(image.getWidth() / 2, image.getHeight() / 2));
+    return c.getRed() > 200 && c.getGreen() < 60 && c.getBlue() < 60;
+  }
+
+  /**
+   * Insert after the APP0 segment of a jpeg an EXIF segment embedding the thumbnail in its IFD1.
+   */
+  private byte[] withExifThumbnail(byte[] jpeg, byte[] thumbnail) {
+    final ByteBuffer tiff = ByteBuffer.allocate(44 + thumbnail.length).order(ByteOrder.LITTLE_ENDIAN);
+    tiff.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+    // IFD0 without entries, followed by IFD1 with the offset and length of the thumbnail
+    tiff.putShort((short) 0).putInt(14);
+    tiff.putShort((short) 2);
+    tiff.putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(44);
+    tiff.putShort((short) 0x0202).putShort((short) 4).putInt(1).putInt(thumbnail.length);
+    tiff.putInt(0);
+    tiff.put(thumbnail);
+    final int app1 = 4 + (((jpeg[4] & 0xff) << 8) | (jpeg[5] & 0xff));
+    final ByteBuffer out = ByteBuffer.allocate(jpeg.length + 10 + tiff.capacity());
+    out.put(jpeg, 0, app1);
+    out.put((byte) 0xff).put((byte) 0xe1).putShort((short) (8 + tiff.capacity()));
+    out.put("Exif".getBytes(StandardCharsets.US_ASCII)).put((byte) 0).put((byte) 0);
+    out.put(tiff.array());
+    out.put(jpeg, app1, jpeg.length - app1);
+    return out.array();
+  }
+
+  private void getStats(final TestContext context, final String address, final Handler<JsonObject> handler) {
+    resizer.getVertx().eventBus().<JsonObject>request(address, new JsonObject().put("action", "stats"))
+      .onSuccess(reply -> handler.handle(reply.body()))
+      .onFailure(context::fail);
+  }
+
   private boolean isOk(JsonObject body) {
     return body != null && !"error".equals(body.getString("status"));
   }